@@ -0,0 +1,269 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Extracts the binaries and keyrings packaged in assets, all of them at
+ * once in the background when the app starts. Every extracted file has a
+ * stamp with the SHA-256 of the asset it came from - when the APK is
+ * updated, assets are hashed again and only those which changed are
+ * rewritten. Callers get the path from memory, waiting only if the
+ * extraction is still running.
+ *
+ * Files go to app's private storage, not to the cache dir - Android can
+ * clear that while the app is running and the remembered paths would
+ * point nowhere until restart.
+ */
+public class AssetExtractor {
+    private static final String TAG = "MROMMgr::AssetExtractor";
+
+    public static final String BUSYBOX = "busybox";
+    public static final String GPGV = "gpgv";
+
+    private static final String[] BINARIES = { BUSYBOX, GPGV };
+    private static final String[] KEYRINGS = { Gpg.RING_MULTIROM };
+    private static final String KEYRING_DIR = "gpg_keyrings";
+    private static final String STAMP_SUFFIX = ".stamp";
+    private static final int THREADS = 3;
+
+    private static class Result {
+        public Result(File file, String hash) {
+            this.file = file;
+            this.hash = hash;
+        }
+
+        public final File file;
+        public final String hash;
+    }
+
+    private static AssetExtractor s_instance = null;
+    public static synchronized AssetExtractor instance() {
+        if(s_instance == null)
+            s_instance = new AssetExtractor();
+        return s_instance;
+    }
+
+    /** @return absolute path of an extracted binary, or null if it couldn't be extracted */
+    public static String getPath(String binary) {
+        Result r = instance().get(binary);
+        return r != null ? r.file.getAbsolutePath() : null;
+    }
+
+    /** @return directory with pubring.gpg of the keyring, or null */
+    public static String getKeyringHome(String keyring) {
+        Result r = instance().get(keyring + ".gpg");
+        return r != null ? r.file.getParent() : null;
+    }
+
+    /** @return SHA-256 of the packaged asset, e.g. "multirom.gpg" */
+    public static String getHash(String asset) {
+        Result r = instance().get(asset);
+        return r != null ? r.hash : null;
+    }
+
+    /** Starts extracting all assets, does nothing if it was already started */
+    public synchronized void start() {
+        if(m_pool != null)
+            return;
+
+        File dir = getExtractDir(MgrApp.getAppContext());
+        m_apkTime = getApkUpdateTime();
+        m_pool = Executors.newFixedThreadPool(THREADS);
+        for(String b : BINARIES)
+            submit(b, new File(dir, b), true);
+        for(String k : KEYRINGS)
+            submit(k + ".gpg", new File(dir, KEYRING_DIR + "/" + k + "/pubring.gpg"), false);
+        m_pool.shutdown();
+    }
+
+    private static File getExtractDir(Context ctx) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            return ctx.getNoBackupFilesDir();
+        return ctx.getFilesDir();
+    }
+
+    /** Removes the copy older versions extracted into the cache dir */
+    private static void deleteFromCache(Context ctx, File dest) {
+        String rel = dest.getAbsolutePath().substring(getExtractDir(ctx).getAbsolutePath().length());
+        File old = new File(ctx.getCacheDir(), rel);
+        old.delete();
+        new File(old.getPath() + STAMP_SUFFIX).delete();
+    }
+
+    private void submit(final String asset, final File dest, final boolean executable) {
+        m_results.put(asset, m_pool.submit(new Callable<Result>() {
+            @Override
+            public Result call() {
+                return extract(asset, dest, executable);
+            }
+        }));
+    }
+
+    private Result get(String asset) {
+        Future<Result> f;
+        synchronized(this) {
+            start();
+            f = m_results.get(asset);
+        }
+        if(f == null)
+            return null;
+
+        try {
+            return f.get();
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        } catch(ExecutionException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private Result extract(String asset, File dest, boolean executable) {
+        File stamp = new File(dest.getPath() + STAMP_SUFFIX);
+        String[] st = readStamp(stamp);
+        final boolean present = st != null && dest.exists() &&
+                String.valueOf(dest.length()).equals(st[2]);
+
+        // same APK as last time, nothing could have changed
+        if(present && String.valueOf(m_apkTime).equals(st[0]))
+            return new Result(dest, st[1]);
+
+        Context ctx = MgrApp.getAppContext();
+        String hash = hashAsset(ctx, asset);
+        if(hash == null)
+            return null;
+
+        if(!present || !hash.equals(st[1])) {
+            Log.i(TAG, "Extracting " + asset);
+            if(!copyAsset(ctx, asset, dest, executable))
+                return null;
+            deleteFromCache(ctx, dest);
+        }
+
+        writeStamp(stamp, m_apkTime + " " + hash + " " + dest.length());
+        return new Result(dest, hash);
+    }
+
+    private static String hashAsset(Context ctx, String asset) {
+        InputStream in = null;
+        try {
+            in = ctx.getAssets().open(asset);
+            return Utils.calculateChecksumStream(in, "SHA-256");
+        } catch(IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            Utils.close(in);
+        }
+    }
+
+    private static boolean copyAsset(Context ctx, String asset, File dest, boolean executable) {
+        dest.getParentFile().mkdirs();
+        File tmp = new File(dest.getPath() + ".tmp");
+
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = ctx.getAssets().open(asset);
+            out = new FileOutputStream(tmp);
+
+            byte[] buff = new byte[4096];
+            for(int len; (len = in.read(buff)) != -1; )
+                out.write(buff, 0, len);
+            out.close();
+            out = null;
+
+            if(executable)
+                tmp.setExecutable(true, false);
+            tmp.setReadable(true, false);
+            return tmp.renameTo(dest);
+        } catch(IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return false;
+        } finally {
+            Utils.close(in);
+            Utils.close(out);
+        }
+    }
+
+    private static String[] readStamp(File stamp) {
+        if(!stamp.exists())
+            return null;
+
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(stamp));
+            String line = r.readLine();
+            if(line == null)
+                return null;
+            String[] tokens = line.split(" ");
+            return tokens.length == 3 ? tokens : null;
+        } catch(IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            Utils.close(r);
+        }
+    }
+
+    private static void writeStamp(File stamp, String data) {
+        FileWriter w = null;
+        try {
+            w = new FileWriter(stamp);
+            w.write(data);
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.close(w);
+        }
+    }
+
+    private static long getApkUpdateTime() {
+        Context ctx = MgrApp.getAppContext();
+        try {
+            return ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0).lastUpdateTime;
+        } catch(PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    private ExecutorService m_pool;
+    private long m_apkTime;
+    private final HashMap<String, Future<Result>> m_results = new HashMap<String, Future<Result>>();
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Header of an Android boot image (boot_img_hdr from mkbootimg), read
+ * straight from the block device - only the first 2 KiB of it.
+ */
+public class BootImgHeader {
+    private static final String TAG = "MROMMgr::BootImgHeader";
+
+    private static final byte[] MAGIC = { 'A', 'N', 'D', 'R', 'O', 'I', 'D', '!' };
+    private static final int NAME_SIZE = 16;
+    private static final int CMDLINE_SIZE = 512;
+    // magic, 10 u32 fields, name and cmdline - the rest of the header isn't used
+    private static final int HEADER_SIZE = MAGIC.length + 10*4 + NAME_SIZE + CMDLINE_SIZE;
+    private static final int READ_SIZE = 2048;
+
+    /** @return header of the boot image in blockDev, or null if it can't be read */
+    public static BootImgHeader read(String blockDev) {
+        Process proc = null;
+        InputStream in = null;
+        try {
+            proc = new ProcessBuilder("su", "-c",
+                    "dd if=\"" + blockDev + "\" bs=" + READ_SIZE + " count=1 2>/dev/null").start();
+            in = proc.getInputStream();
+
+            byte[] data = new byte[READ_SIZE];
+            int len = 0;
+            for(int read; len < data.length && (read = in.read(data, len, data.length - len)) > 0; )
+                len += read;
+
+            return parse(data, len);
+        } catch(IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            Utils.close(in);
+            if(proc != null)
+                proc.destroy();
+        }
+    }
+
+    public static BootImgHeader parse(byte[] data, int len) {
+        if(len < HEADER_SIZE) {
+            Log.e(TAG, "Boot image header too short (" + len + " bytes)");
+            return null;
+        }
+
+        for(int i = 0; i < MAGIC.length; ++i) {
+            if(data[i] != MAGIC[i]) {
+                Log.e(TAG, "Not an Android boot image");
+                return null;
+            }
+        }
+
+        ByteBuffer b = ByteBuffer.wrap(data, 0, len).order(ByteOrder.LITTLE_ENDIAN);
+        b.position(MAGIC.length);
+
+        BootImgHeader h = new BootImgHeader();
+        h.kernelSize = b.getInt();
+        h.kernelAddr = b.getInt();
+        h.ramdiskSize = b.getInt();
+        h.ramdiskAddr = b.getInt();
+        h.secondSize = b.getInt();
+        h.secondAddr = b.getInt();
+        h.tagsAddr = b.getInt();
+        h.pageSize = b.getInt();
+        h.headerVersion = b.getInt();
+        h.osVersion = b.getInt();
+        h.name = readString(b, NAME_SIZE);
+        h.cmdline = readString(b, CMDLINE_SIZE);
+        return h;
+    }
+
+    private static String readString(ByteBuffer b, int size) {
+        byte[] buf = new byte[size];
+        b.get(buf);
+
+        int len = 0;
+        while(len < size && buf[len] != 0)
+            ++len;
+        return new String(buf, 0, len, Charset.forName("US-ASCII"));
+    }
+
+    public int kernelSize;
+    public int kernelAddr;
+    public int ramdiskSize;
+    public int ramdiskAddr;
+    public int secondSize;
+    public int secondAddr;
+    public int tagsAddr;
+    public int pageSize;
+    public int headerVersion;
+    public int osVersion;
+    public String name;
+    public String cmdline;
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checksums of big files. Reads go through a FileChannel into a large
+ * direct buffer, so hashing a multi-gigabyte image is not dominated by
+ * thousands of small read() calls, and every buffer can feed several
+ * digests at once (e.g. MD5 and SHA-256 in one pass). Several files can
+ * be hashed at the same time on a small pool - hashing is CPU bound on
+ * most devices, so this is what gets us to storage speed.
+ */
+public class ChecksumEngine {
+    private static final String TAG = "MROMMgr::ChecksumEngine";
+
+    private static final int BUFF_SIZE = 1024 * 1024;
+    private static final int MAX_THREADS = 4;
+
+    private static final ThreadLocal<ByteBuffer> s_buffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFF_SIZE);
+        }
+    };
+
+    /**
+     * @param types MessageDigest algorithms, e.g. "MD5", "SHA-1", "SHA-256"
+     * @return hex digests in the same order as types, or null on failure
+     */
+    public static String[] calculate(File file, String... types) {
+        MessageDigest[] digests = new MessageDigest[types.length];
+        for(int i = 0; i < types.length; ++i) {
+            digests[i] = Utils.createDigest(types[i]);
+            if(digests[i] == null)
+                return null;
+        }
+
+        if(update(digests, file, Long.MAX_VALUE) < 0)
+            return null;
+
+        String[] res = new String[digests.length];
+        for(int i = 0; i < digests.length; ++i)
+            res[i] = Utils.bytesToHex(digests[i].digest());
+        return res;
+    }
+
+    /** @return hex digest of file, or null on failure */
+    public static String calculate(File file, String type) {
+        String[] res = calculate(file, new String[] { type });
+        return res != null ? res[0] : null;
+    }
+
+    /**
+     * Hashes several files at once.
+     * @return map of file to its hex digest, files which failed are not there
+     */
+    public static Map<File, String> calculate(List<File> files, final String type) {
+        HashMap<File, String> res = new HashMap<File, String>();
+        if(files.isEmpty())
+            return res;
+
+        final int threads = Math.min(files.size(),
+                Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+
+        ArrayList<Future<String>> futures = new ArrayList<Future<String>>(files.size());
+        for(final File f : files) {
+            futures.add(pool.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return calculate(f, type);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        try {
+            for(int i = 0; i < files.size(); ++i) {
+                String hash = futures.get(i).get();
+                if(hash != null)
+                    res.put(files.get(i), hash);
+            }
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+            pool.shutdownNow();
+        } catch(ExecutionException e) {
+            e.printStackTrace();
+        }
+        return res;
+    }
+
+    /**
+     * Feeds up to length bytes from the start of file to all digests.
+     * @return number of bytes read, -1 on failure
+     */
+    public static long update(MessageDigest[] digests, File file, long length) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel ch = in.getChannel();
+            ByteBuffer buf = s_buffer.get();
+
+            long total = 0;
+            while(total < length) {
+                buf.clear();
+                if(length - total < buf.capacity())
+                    buf.limit((int)(length - total));
+
+                int read = ch.read(buf);
+                if(read <= 0)
+                    break;
+                total += read;
+
+                buf.flip();
+                for(MessageDigest d : digests) {
+                    buf.mark();
+                    d.update(buf);
+                    buf.reset();
+                }
+            }
+            return total;
+        } catch(IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            Utils.close(in);
+        }
+    }
+}
@@ -28,45 +28,90 @@ import org.json.JSONObject;
 import org.json.JSONTokener;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.HashMap;
+import java.util.Locale;
 
 public class Device {
     private static final String TAG = "MROMMgr::Device";
 
-    public static Device load(String name) {
+    private static class IndexEntry {
+        public IndexEntry(String baseVariant, JSONObject info) {
+            this.baseVariant = baseVariant;
+            this.info = info;
+        }
+
+        public final String baseVariant;
+        public final JSONObject info;
+    }
+
+    // devices.json is parsed once, into an index by lowercase variant name
+    private static HashMap<String, IndexEntry> s_index;
+    private static final HashMap<String, Device> s_loaded = new HashMap<String, Device>();
+
+    /** @return device with this variant name, shared by all callers, or null */
+    public static synchronized Device load(String name) {
+        name = name.toLowerCase(Locale.ENGLISH);
+
+        Device dev = s_loaded.get(name);
+        if(dev != null)
+            return dev;
+
+        if(s_index == null && !loadIndex())
+            return null;
+
+        IndexEntry e = s_index.get(name);
+        if(e == null)
+            return null;
+
+        try {
+            dev = new Device(name, e.baseVariant, e.info);
+            s_loaded.put(name, dev);
+            return dev;
+        } catch (JSONException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    private static boolean loadIndex() {
         Context ctx = MgrApp.getAppContext();
         StringBuilder b = new StringBuilder();
 
-        name = name.toLowerCase();
-
+        InputStreamReader in = null;
         try {
-            InputStream in = ctx.getAssets().open("devices.json");
-            byte[] buff = new byte[1024];
+            in = new InputStreamReader(ctx.getAssets().open("devices.json"), "UTF-8");
+            char[] buff = new char[8192];
             for(int len; (len = in.read(buff)) != -1; )
-                b.append(new String(buff, 0, len));
-            in.close();
+                b.append(buff, 0, len);
         } catch (IOException e) {
             e.printStackTrace();
-            return null;
+            return false;
+        } finally {
+            Utils.close(in);
         }
 
         try {
+            HashMap<String, IndexEntry> index = new HashMap<String, IndexEntry>();
             JSONObject o = (JSONObject)new JSONTokener(b.toString()).nextValue();
             JSONArray devices = o.getJSONArray("devices");
-            JSONArray names;
             for(int i = 0; i < devices.length(); ++i) {
                 o = devices.getJSONObject(i);
 
-                names = o.getJSONArray("names");
-                for(int x = 0; x < names.length(); ++x)
-                    if (name.equals(names.getString(x).toLowerCase()))
-                        return new Device(name, names.getString(0), o);
+                JSONArray names = o.getJSONArray("names");
+                IndexEntry e = new IndexEntry(names.getString(0), o);
+                for(int x = 0; x < names.length(); ++x) {
+                    String n = names.getString(x).toLowerCase(Locale.ENGLISH);
+                    // first definition wins, like the linear search did
+                    if(!index.containsKey(n))
+                        index.put(n, e);
+                }
             }
-            return null;
+            s_index = index;
+            return true;
         } catch (JSONException e) {
             e.printStackTrace();
-            return null;
+            return false;
         }
     }
 
@@ -1,57 +1,100 @@
 package com.tassadar.multirommgr;
 
-import android.content.Context;
+import android.util.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import eu.chainfire.libsuperuser.Shell;
 
+/**
+ * Verifies detached signatures with gpgv, one instance per keyring. The
+ * binary and keyrings come from {@link AssetExtractor}. Pairs queued
+ * with verifyAsync() are checked in the background while other files are
+ * still downloading, everything queued at that moment in one shell
+ * invocation.
+ *
+ * Good signatures are written to a ledger keyed by a digest of the
+ * file's bytes, of the signature and of the keyring, so a byte-identical
+ * pair (e.g. a re-downloaded manifest.json) is never checked twice, even
+ * across restarts, while any change to the content or the keyring is.
+ * The file digest is the one computed while downloading if the caller
+ * has it, the file is hashed only when it doesn't. It never comes from
+ * a cache keyed by file metadata, a replaced file must not match.
+ */
 public class Gpg {
+    private static final String TAG = "MROMMgr::Gpg";
+
     public static final String RING_MULTIROM = "multirom";
-    private static final String GPG_BIN = "gpgv";
+    private static final int WORKERS = 2;
+    private static final String LEDGER_NAME = "gpg_ledger";
+    private static final int LEDGER_MAX = 256;
 
-    public Gpg(String keyring) throws IOException {
-        m_gpg_bin = Utils.extractAsset(GPG_BIN);
-        if(m_gpg_bin == null)
-            throw new FileNotFoundException("Couldn't extract gpg binary!");
+    private static final HashMap<String, Gpg> s_instances = new HashMap<String, Gpg>();
+    private static ExecutorService s_pool;
+    private static LinkedHashSet<String> s_ledger;
 
-        m_gpg_home = extractKeyring(keyring);
+    public static synchronized Gpg get(String keyring) throws IOException {
+        Gpg gpg = s_instances.get(keyring);
+        if(gpg == null) {
+            gpg = new Gpg(keyring);
+            s_instances.put(keyring, gpg);
+        }
+        return gpg;
     }
 
-    private String extractKeyring(String name) throws IOException {
-        Context ctx = MgrApp.getAppContext();
+    private static synchronized ExecutorService getPool() {
+        if(s_pool == null)
+            s_pool = Executors.newFixedThreadPool(WORKERS);
+        return s_pool;
+    }
 
-        File gpg_home = new File(ctx.getCacheDir() + "/gpg_keyrings/" + name);
-        File f = new File(gpg_home, "pubring.gpg");
-        if(f.exists())
-            return gpg_home.getAbsolutePath();
+    /** Result of a verification running in the background */
+    public static class Verification {
+        private Verification(String path, String signature, String sha256) {
+            m_path = path;
+            m_signature = signature;
+            m_sha256 = sha256;
+        }
 
-        InputStream in = null;
-        FileOutputStream out = null;
-        try {
-            gpg_home.mkdirs();
+        /** Blocks until the verification is done */
+        public boolean get() throws InterruptedException {
+            m_done.await();
+            return m_result;
+        }
 
-            in = ctx.getAssets().open(name + ".gpg");
-            out = new FileOutputStream(f);
+        private void finish(boolean result) {
+            m_result = result;
+            m_done.countDown();
+        }
 
-            byte[] buff = new byte[4096];
-            for(int len; (len = in.read(buff)) != -1; )
-                out.write(buff, 0, len);
+        private final String m_path;
+        private final String m_signature;
+        private final String m_sha256;
+        private final CountDownLatch m_done = new CountDownLatch(1);
+        private volatile boolean m_result;
+    }
 
-            return gpg_home.getAbsolutePath();
-        } catch (IOException e) {
-            throw e;
-        } finally {
-            if(in != null)
-                try { in.close(); } catch(IOException e) { }
-            if(out != null)
-                try { out.close(); } catch(IOException e) { }
-        }
+    private Gpg(String keyring) throws IOException {
+        m_gpg_bin = AssetExtractor.getPath(AssetExtractor.GPGV);
+        if(m_gpg_bin == null)
+            throw new FileNotFoundException("Couldn't extract gpg binary!");
+
+        m_gpg_home = AssetExtractor.getKeyringHome(keyring);
+        if(m_gpg_home == null)
+            throw new FileNotFoundException("Couldn't extract keyring " + keyring + "!");
+        m_keyringHash = AssetExtractor.getHash(keyring + ".gpg");
     }
 
     public boolean verifyFile(String path) {
@@ -59,11 +102,160 @@ public class Gpg {
     }
 
     public boolean verifyFile(String path, String signature) {
-        final String cmd = "%s --keyring \'%s/pubring.gpg\' \'%s\' \'%s\' >/dev/null 2>&1 && echo \'success\'";
-        List<String> out = Shell.SH.run(cmd, m_gpg_bin, m_gpg_home, signature, path);
-        return out.size() >= 1 && out.get(0).equals("success");
+        return verifyFile(path, signature, null);
+    }
+
+    /**
+     * @param sha256 SHA-256 of the file computed while it was downloaded,
+     *               null to let the file be hashed here. Results are
+     *               remembered by it, so no weaker digest is accepted.
+     */
+    public boolean verifyFile(String path, String signature, String sha256) {
+        ArrayList<Verification> batch = new ArrayList<Verification>(1);
+        Verification v = new Verification(path, signature, sha256);
+        batch.add(v);
+        runBatch(batch);
+        return v.m_result;
+    }
+
+    /**
+     * Queues a pair for verification on the background workers. The files
+     * must not change until the result is known.
+     * @see #verifyFile(String, String, String)
+     */
+    public Verification verifyAsync(String path, String signature, String sha256) {
+        Verification v = new Verification(path, signature, sha256);
+        synchronized(m_queue) {
+            m_queue.add(v);
+        }
+        getPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<Verification> batch;
+                synchronized(m_queue) {
+                    // an earlier runnable may have taken this one already
+                    if(m_queue.isEmpty())
+                        return;
+                    batch = new ArrayList<Verification>(m_queue);
+                    m_queue.clear();
+                }
+                runBatch(batch);
+            }
+        });
+        return v;
+    }
+
+    private void runBatch(List<Verification> batch) {
+        ArrayList<Verification> toRun = new ArrayList<Verification>(batch.size());
+        ArrayList<String> keys = new ArrayList<String>(batch.size());
+        for(Verification v : batch) {
+            String key = getResultKey(v);
+            if(key != null && isInLedger(key)) {
+                Log.d(TAG, v.m_path + ": signature already verified");
+                v.finish(true);
+            } else {
+                toRun.add(v);
+                keys.add(key);
+            }
+        }
+
+        if(toRun.isEmpty())
+            return;
+
+        final String cmd = "%s --keyring \'%s/pubring.gpg\' \'%s\' \'%s\' >/dev/null 2>&1 && echo \'ok %d\'; ";
+        StringBuilder b = new StringBuilder();
+        for(int i = 0; i < toRun.size(); ++i) {
+            Verification v = toRun.get(i);
+            b.append(String.format(cmd, m_gpg_bin, m_gpg_home, v.m_signature, v.m_path, i));
+        }
+
+        boolean[] res = new boolean[toRun.size()];
+        List<String> out = Shell.SH.run(b.toString());
+        if(out != null) {
+            for(String line : out) {
+                if(!line.startsWith("ok "))
+                    continue;
+                try {
+                    int idx = Integer.parseInt(line.substring(3).trim());
+                    if(idx >= 0 && idx < res.length)
+                        res[idx] = true;
+                } catch(NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        for(int i = 0; i < toRun.size(); ++i) {
+            // only good results are kept, a failure may have been gpgv not running
+            if(res[i] && keys.get(i) != null)
+                addToLedger(keys.get(i));
+            Log.d(TAG, toRun.get(i).m_path + ": signature " + (res[i] ? "OK" : "BAD"));
+            toRun.get(i).finish(res[i]);
+        }
+    }
+
+    private String getResultKey(Verification v) {
+        String fileHash = v.m_sha256;
+        if(fileHash == null)
+            fileHash = ChecksumEngine.calculate(new File(v.m_path), "SHA-256");
+        String signHash = Utils.calculateSHA256(v.m_signature);
+        if(fileHash == null || signHash == null || m_keyringHash == null)
+            return null;
+        return "sha256-" + fileHash.toLowerCase(Locale.ENGLISH) + ":" + signHash + ":" + m_keyringHash;
+    }
+
+    private static File getLedgerFile() {
+        return new File(MgrApp.getAppContext().getFilesDir(), LEDGER_NAME);
+    }
+
+    private static synchronized boolean isInLedger(String key) {
+        if(s_ledger == null) {
+            s_ledger = new LinkedHashSet<String>();
+            String data = Utils.readFile(getLedgerFile().getAbsolutePath());
+            if(data != null) {
+                for(String line : data.split("\n")) {
+                    if(!line.isEmpty())
+                        s_ledger.add(line);
+                }
+            }
+        }
+        return s_ledger.contains(key);
+    }
+
+    private static synchronized void addToLedger(String key) {
+        isInLedger(key);
+        s_ledger.remove(key);
+        s_ledger.add(key);
+
+        // oldest entries go first
+        Iterator<String> itr = s_ledger.iterator();
+        while(s_ledger.size() > LEDGER_MAX && itr.hasNext()) {
+            itr.next();
+            itr.remove();
+        }
+
+        StringBuilder b = new StringBuilder();
+        for(String k : s_ledger)
+            b.append(k).append('\n');
+
+        File f = getLedgerFile();
+        File tmp = new File(f.getPath() + ".tmp");
+        FileWriter w = null;
+        try {
+            w = new FileWriter(tmp);
+            w.write(b.toString());
+            w.close();
+            w = null;
+            tmp.renameTo(f);
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.close(w);
+        }
     }
 
     private String m_gpg_bin;
     private String m_gpg_home;
+    private final ArrayList<Verification> m_queue = new ArrayList<Verification>();
+    private String m_keyringHash;
 }
@@ -0,0 +1,223 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+/**
+ * Single place through which all HTTP requests go. The Ubuntu install does
+ * dozens of small requests against the same host (channels, indexes,
+ * signatures, keyrings), so connections are kept alive and reused instead
+ * of paying for TCP and TLS setup every time. That only works if the body
+ * is read to the end and the connection is released with
+ * {@link Response#close(boolean)}, never disconnect()-ed directly.
+ *
+ * Requests which fail before any of the body is read (connection errors,
+ * timeouts, 5xx) are retried with jittered exponential backoff.
+ */
+public class HttpClient {
+    private static final String TAG = "MROMMgr::HttpClient";
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+    public static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_BASE_MS = 500;
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+
+    public interface ConnectionSetup {
+        /** Called before each attempt to connect, set request headers here */
+        public void onConnecting(HttpURLConnection conn) throws IOException;
+    }
+
+    /**
+     * One finished request, with its response code and headers already
+     * received. Must always be closed.
+     */
+    public class Response {
+        private Response(String url, HttpURLConnection conn, int code, int attempts, long start) {
+            m_url = url;
+            m_conn = conn;
+            m_code = code;
+            m_attempts = attempts;
+            m_start = start;
+            m_ttfb = SystemClock.elapsedRealtime() - start;
+        }
+
+        public HttpURLConnection getConnection() {
+            return m_conn;
+        }
+
+        public int getCode() {
+            return m_code;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            if(m_in == null)
+                m_in = m_conn.getInputStream();
+            return m_in;
+        }
+
+        /** Lets the metrics know how much of the body was read */
+        public void addBytes(long count) {
+            m_bytes += count;
+        }
+
+        /**
+         * @param complete true if the body was read to the end, so that the
+         *                 connection can go back to the pool. Otherwise it
+         *                 is torn down, there would be unread data in it.
+         */
+        public void close(boolean complete) {
+            if(m_closed)
+                return;
+            m_closed = true;
+
+            if(complete) {
+                Utils.close(m_in);
+            } else {
+                Utils.close(m_in);
+                m_conn.disconnect();
+            }
+
+            final long time = SystemClock.elapsedRealtime() - m_start;
+            synchronized(HttpClient.this) {
+                ++m_requests;
+                m_totalBytes += m_bytes;
+                m_totalTime += time;
+                m_retries += m_attempts - 1;
+            }
+
+            Log.d(TAG, String.format("%s: %d, %d bytes in %d ms (first byte %d ms, %d attempt(s)%s)",
+                    m_url, m_code, m_bytes, time, m_ttfb, m_attempts, complete ? "" : ", not reused"));
+        }
+
+        private final String m_url;
+        private final HttpURLConnection m_conn;
+        private final int m_code;
+        private final int m_attempts;
+        private final long m_start;
+        private final long m_ttfb;
+        private InputStream m_in;
+        private long m_bytes;
+        private boolean m_closed;
+    }
+
+    private static HttpClient s_instance = null;
+    public static synchronized HttpClient instance() {
+        if(s_instance == null)
+            s_instance = new HttpClient();
+        return s_instance;
+    }
+
+    private HttpClient() {
+        // Read by the platform's connection pool when it is first used,
+        // so instance() should be called early, see MgrApp.
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+    }
+
+    public void setTimeouts(int connectMs, int readMs) {
+        m_connectTimeout = connectMs;
+        m_readTimeout = readMs;
+    }
+
+    /**
+     * Sends a GET request and waits for the response headers, retrying if
+     * the server can't be reached or answers with 5xx.
+     * @param setup may be null
+     * @return response, even if its code isn't 2xx. The caller must close it.
+     */
+    public Response get(String url, ConnectionSetup setup) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        IOException lastError = null;
+
+        for(int attempt = 1; attempt <= MAX_ATTEMPTS; ++attempt) {
+            if(attempt != 1 && !backoff(attempt - 1))
+                break;
+
+            HttpURLConnection conn = null;
+            try {
+                conn = (HttpURLConnection)new URL(url).openConnection();
+                conn.setConnectTimeout(m_connectTimeout);
+                conn.setReadTimeout(m_readTimeout);
+                conn.setInstanceFollowRedirects(true);
+                if(setup != null)
+                    setup.onConnecting(conn);
+
+                conn.connect();
+                final int code = conn.getResponseCode();
+                if(code >= 500 && attempt != MAX_ATTEMPTS) {
+                    Log.w(TAG, url + " returned " + code + ", retrying");
+                    conn.disconnect();
+                    continue;
+                }
+                return new Response(url, conn, code, attempt, start);
+            } catch(IOException e) {
+                Log.w(TAG, url + " failed (attempt " + attempt + "): " + e.getMessage());
+                if(conn != null)
+                    conn.disconnect();
+                lastError = e;
+            }
+        }
+
+        synchronized(this) {
+            ++m_failures;
+        }
+        throw lastError != null ? lastError : new IOException("Request to " + url + " was interrupted");
+    }
+
+    /** @return false if the thread was interrupted while waiting */
+    private boolean backoff(int retry) {
+        final long max = BACKOFF_BASE_MS << (retry - 1);
+        final long delay;
+        synchronized(m_random) {
+            // "equal jitter", so that parallel downloads don't retry in lockstep
+            delay = max/2 + (long)(m_random.nextDouble() * (max/2));
+        }
+
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public synchronized String getStats() {
+        return String.format("%d requests, %d failed, %d retries, %d bytes, %d ms total",
+                m_requests, m_failures, m_retries, m_totalBytes, m_totalTime);
+    }
+
+    private volatile int m_connectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile int m_readTimeout = DEFAULT_READ_TIMEOUT_MS;
+    private final Random m_random = new Random();
+
+    private long m_requests;
+    private long m_failures;
+    private long m_retries;
+    private long m_totalBytes;
+    private long m_totalTime;
+}
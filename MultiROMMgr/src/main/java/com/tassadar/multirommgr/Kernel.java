@@ -17,21 +17,36 @@
 
 package com.tassadar.multirommgr;
 
+import android.content.SharedPreferences;
 import android.util.Log;
 
 import java.util.List;
 
 import eu.chainfire.libsuperuser.Shell;
 
+/**
+ * What the running kernel can do. None of it can change until reboot, so
+ * it is probed once per boot (all in one root shell call) and remembered
+ * in preferences together with the boot id.
+ */
 public class Kernel {
     private static final String TAG = "MROMMgr::Kernel";
 
+    private static final String PREF_BOOT_ID = "kernel_boot_id";
+    private static final String PREF_CHECK_PATH = "kernel_check_path";
+    private static final String PREF_HAS_KEXEC = "kernel_has_kexec";
+    private static final String PREF_VERSION = "kernel_version";
+    private static final String PREF_CMDLINE = "kernel_cmdline";
+
     public Kernel() {
         m_hasKexec = false;
     }
 
     public boolean findKexecHardboot(Device dev) {
-        String b = Utils.extractAsset("busybox");
+        if(loadCached(dev))
+            return m_hasKexec;
+
+        String b = AssetExtractor.getPath(AssetExtractor.BUSYBOX);
         if(b == null) {
             Log.e(TAG, "Failed to extract busybox!");
             return false;
@@ -40,35 +55,83 @@ public class Kernel {
     }
 
     public boolean findKexecHardboot(Device dev, String busybox) {
-        List<String> out = null;
-        if(!dev.getKexecCheckPath().isEmpty()) {
-            out = Shell.SU.run(
-                    "if [ -e \"%s\" ] || [ \"$(\"%s\" grep mrom_kexecd=1 /proc/cmdline)\" ]; then" +
-                    "     echo has_kexec;" +
-                    "fi;",
-                    dev.getKexecCheckPath(), busybox);
-        } else {
-            out = Shell.SU.run(
-                    "if [ -f /proc/atags ] || [ \"$(\"%s\" grep mrom_kexecd=1 /proc/cmdline)\" ]; then" +
-                    "    echo has_kexec;" +
-                    "    exit 0;" +
-                    "fi;",
-                    busybox, busybox, busybox, busybox);
-        }
+        if(loadCached(dev))
+            return m_hasKexec;
+
+        String check;
+        if(!dev.getKexecCheckPath().isEmpty())
+            check = "[ -e \"" + dev.getKexecCheckPath() + "\" ]";
+        else
+            check = "[ -f /proc/atags ]";
+
+        List<String> out = Shell.SU.run(
+                "if " + check + " || [ \"$(\"%s\" grep mrom_kexecd=1 /proc/cmdline)\" ]; then" +
+                "    echo has_kexec;" +
+                "else" +
+                "    echo no_kexec;" +
+                "fi;" +
+                "cat /proc/sys/kernel/osrelease;" +
+                "cat /proc/cmdline;",
+                busybox);
 
         if(out == null || out.isEmpty())
             return false;
 
-        if(out.get(0).equals("has_kexec")) {
-            m_hasKexec = true;
-            return true;
+        m_hasKexec = out.get(0).equals("has_kexec");
+        m_version = out.size() > 1 ? out.get(1).trim() : "";
+        m_cmdline = out.size() > 2 ? out.get(2).trim() : "";
+
+        final String bootId = Utils.getBootId();
+        if(bootId != null) {
+            MgrApp.getPreferences().edit()
+                    .putString(PREF_BOOT_ID, bootId)
+                    .putString(PREF_CHECK_PATH, dev.getKexecCheckPath())
+                    .putBoolean(PREF_HAS_KEXEC, m_hasKexec)
+                    .putString(PREF_VERSION, m_version)
+                    .putString(PREF_CMDLINE, m_cmdline)
+                    .apply();
         }
-        return false;
+        return m_hasKexec;
+    }
+
+    private boolean loadCached(Device dev) {
+        final String bootId = Utils.getBootId();
+        SharedPreferences p = MgrApp.getPreferences();
+        if(bootId == null || !bootId.equals(p.getString(PREF_BOOT_ID, null)) ||
+                !dev.getKexecCheckPath().equals(p.getString(PREF_CHECK_PATH, null)))
+            return false;
+
+        m_hasKexec = p.getBoolean(PREF_HAS_KEXEC, false);
+        m_version = p.getString(PREF_VERSION, "");
+        m_cmdline = p.getString(PREF_CMDLINE, "");
+        return true;
     }
 
     public boolean hasKexec() {
         return m_hasKexec;
     }
 
+    /** Kernel release, as in uname -r. Empty until findKexecHardboot() ran. */
+    public String getVersion() {
+        return m_version;
+    }
+
+    public String getCmdline() {
+        return m_cmdline;
+    }
+
+    /** @return value of param=value from the kernel cmdline, "" for a bare flag, null if missing */
+    public String getCmdlineParam(String name) {
+        for(String t : m_cmdline.split(" ")) {
+            if(t.equals(name))
+                return "";
+            if(t.startsWith(name + "="))
+                return t.substring(name.length() + 1);
+        }
+        return null;
+    }
+
     private boolean m_hasKexec;
+    private String m_version = "";
+    private String m_cmdline = "";
 }
@@ -164,6 +164,7 @@ public class MainActivity extends AppCompatActivity implements StatusAsyncTask.S
     protected void onStop() {
         super.onStop();
         Utils.flushHttpCache();
+        Log.d(TAG, "HTTP: " + HttpClient.instance().getStats());
     }
 
     @Override
@@ -18,6 +18,8 @@
 package com.tassadar.multirommgr;
 
 import android.content.SharedPreferences;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import com.tassadar.multirommgr.installfragment.Changelog;
@@ -25,156 +27,450 @@ import com.tassadar.multirommgr.installfragment.Changelog;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.text.ParseException;
-import java.util.Date;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Manifest {
     private static final String TAG = "MROMMgr::Manifest";
     public static final String DEFAULT_URL = "http://tasemnice.eu/multirom/manifest.json";
+    private static final int MODEL_VERSION = 1;
+
+    /**
+     * One file from the manifest. It is immutable and shared by every copy
+     * of the manifest, install tasks keep track of where they put it. The
+     * rarely used "extra" object is kept as text and decoded on request.
+     */
+    public static class InstallationFile {
+        public InstallationFile(String type, String version, String url, String md5,
+                long size, String extra) {
+            this.type = type.toLowerCase().intern();
+            this.version = version;
+            this.url = url;
+            this.md5 = md5;
+            this.size = size;
+            m_extra = extra;
+        }
 
-    public class InstallationFile {
-        public String type;
-        public String version;
-        public String url;
-        public String md5;
-        public long size;
-        public JSONObject extra;
+        /** @return the file's "extra" object, or null if it has none */
+        public JSONObject getExtra() {
+            if(m_extra == null)
+                return null;
+            try {
+                return new JSONObject(m_extra);
+            } catch(JSONException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
 
-        public File destFile;
+        public final String type;
+        public final String version;
+        public final String url;
+        public final String md5;
+        public final long size;
+        private final String m_extra;
     }
 
     public boolean downloadAndParse(Device dev, boolean check_gpg) {
-        FileOutputStream out_man = null;
-        FileOutputStream out_sign = null;
-        String man_filename = MgrApp.getAppContext().getCacheDir() + "/manifest.json";
-        String sign_filename = MgrApp.getAppContext().getCacheDir() + "/manifest.json.asc";
-        try {
-            out_man = new FileOutputStream(man_filename);
-            out_sign = new FileOutputStream(sign_filename);
-            SharedPreferences p = MgrApp.getPreferences();
+        SharedPreferences p = MgrApp.getPreferences();
 
-            String url = dev.getDefaultManifestUrl();
-            if(p.getBoolean(SettingsFragment.DEV_OVERRIDE_MANIFEST, false))
-                url = p.getString(SettingsFragment.DEV_MANIFEST_URL, url);
+        String url = dev.getDefaultManifestUrl();
+        if(p.getBoolean(SettingsFragment.DEV_OVERRIDE_MANIFEST, false))
+            url = p.getString(SettingsFragment.DEV_MANIFEST_URL, url);
 
-            if(!Utils.downloadFile(url, out_man, null, true))
-                return false;
-            if(dev.checkGpgSignatures() && !Utils.downloadFile(url + ".asc", out_sign, null, true))
+        ManifestCache cache = ManifestCache.instance();
+        synchronized(cache) {
+            if(cache.fetch(url, dev.checkGpgSignatures()) == ManifestCache.FETCH_FAILED)
                 return false;
-        } catch(IOException e) {
-            e.printStackTrace();
-            return false;
-        } finally {
-            Utils.close(out_man);
-            Utils.close(out_sign);
-        }
 
-        if(check_gpg && dev.checkGpgSignatures()) {
-            try {
-                Gpg gpg = new Gpg(Gpg.RING_MULTIROM);
-                if (!gpg.verifyFile(man_filename, sign_filename)) {
+            // Gpg keeps a ledger of good signatures, an unchanged manifest
+            // doesn't run gpgv again
+            if(check_gpg && dev.checkGpgSignatures()) {
+                try {
+                    Gpg gpg = Gpg.get(Gpg.RING_MULTIROM);
+                    if (!gpg.verifyFile(cache.getManifestFile().getAbsolutePath(),
+                            cache.getSignFile().getAbsolutePath())) {
+                        Log.e(TAG, "Manifest signature verification failed!");
+                        cache.invalidate();
+                        return false;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
                     Log.e(TAG, "Manifest signature verification failed!");
+                    cache.invalidate();
                     return false;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.e(TAG, "Manifest signature verification failed!");
-                return false;
             }
+
+            Manifest cached = cache.getModel(dev.getName());
+            if(cached != null) {
+                copyFrom(cached);
+                return true;
+            }
+
+            if(!parse(cache.getManifestFile(), dev))
+                return false;
+
+            // compareVersions() changes this object, so the cache gets its own
+            // shell. Everything else is immutable and shared between the two.
+            Manifest model = new Manifest();
+            model.copyFrom(this);
+            cache.setModel(dev.getName(), model);
+            return true;
         }
+    }
 
-        String manifest = Utils.readFile(man_filename);
-        if(manifest == null)
-            return false;
+    /** Selected device's part of the manifest */
+    private class DeviceEntry {
+        public String name;
+        public String reqMultiROM;
+        public String reqRecovery;
+        public Changelog[] changelogs;
+        public ArrayList<InstallationFile> files;
+    }
 
+    /**
+     * Reads the manifest with a streaming parser. Only the entry of dev (or
+     * of its base variant) is built, other devices are skipped without
+     * creating anything for them.
+     */
+    private boolean parse(File manifest, Device dev) {
+        JsonReader r = null;
         try {
-            Object rawObject = new JSONTokener(manifest).nextValue();
-            if(!(rawObject instanceof JSONObject)){
-                Log.e(TAG, "Malformed manifest format!");
-                return false;
-            }
+            r = new JsonReader(new InputStreamReader(
+                    new BufferedInputStream(new FileInputStream(manifest)), "UTF-8"));
+            return parseRoot(r, dev);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            // value of unexpected type
+            e.printStackTrace();
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.close(r);
+        }
+        return false;
+    }
 
-            JSONObject o = (JSONObject)rawObject;
-            m_commands = o.optString("commands", "").split("\\|");
-            m_status = o.getString("status");
-            if(!m_status.equals("ok")) {
-                Log.e(TAG, "MultiROM manifest's status is \"" + m_status + "\"");
-                return false;
-            }
+    private boolean parseRoot(JsonReader r, Device dev) throws IOException, JSONException {
+        if(r.peek() != JsonToken.BEGIN_OBJECT) {
+            Log.e(TAG, "Malformed manifest format!");
+            return false;
+        }
 
-            if(dev.checkGpgSignatures())
-                m_gpgData = o.optBoolean("gpg", false);
-
-            JSONArray dev_array = o.getJSONArray("devices");
-            int device_idx = -1;
-            int base_variant_idx = -1;
-            for(int i = 0; i < dev_array.length(); ++i) {
-                String name = dev_array.getJSONObject(i).getString("name");
-                if(name.equals(dev.getName())) {
-                    device_idx = i;
-                    break;
-                } else if(name.equals(dev.getBaseVariantName())) {
-                    base_variant_idx = i;
+        String status = null;
+        String commands = "";
+        boolean gpg = false;
+        DeviceEntry exact = null;
+        DeviceEntry base = null;
+
+        r.beginObject();
+        while(r.hasNext()) {
+            final String key = r.nextName();
+            if(key.equals("status")) {
+                status = optString(r, null);
+            } else if(key.equals("commands")) {
+                commands = optString(r, "");
+            } else if(key.equals("gpg")) {
+                gpg = optBoolean(r);
+            } else if(key.equals("devices")) {
+                r.beginArray();
+                while(r.hasNext()) {
+                    if(exact != null) {
+                        r.skipValue();
+                        continue;
+                    }
+
+                    DeviceEntry e = readDevice(r, dev);
+                    if(e == null)
+                        continue;
+                    if(e.name.equals(dev.getName()))
+                        exact = e;
+                    else
+                        base = e;
                 }
+                r.endArray();
+            } else {
+                r.skipValue();
             }
+        }
+        r.endObject();
+
+        m_commands = commands.split("\\|");
+        m_status = status;
+        if(status == null)
+            throw new JSONException("Manifest has no status");
+        if(!m_status.equals("ok")) {
+            Log.e(TAG, "MultiROM manifest's status is \"" + m_status + "\"");
+            return false;
+        }
 
-            if(device_idx != -1) {
-                o = dev_array.getJSONObject(device_idx);
-            } else if(base_variant_idx != -1) {
-                o = dev_array.getJSONObject(base_variant_idx);
+        if(dev.checkGpgSignatures())
+            m_gpgData = gpg;
+
+        DeviceEntry d = exact != null ? exact : base;
+        if(d == null)
+            return false;
+        if(d.files == null)
+            throw new JSONException("Device " + d.name + " has no files");
+
+        m_ubuntuReqMultiROM = d.reqMultiROM;
+        m_ubuntuReqRecovery = d.reqRecovery;
+        m_changelogs = d.changelogs;
+        // the old map may be shared with another copy
+        m_kernels = new LinkedHashMap<String, InstallationFile>();
+        for(InstallationFile file : d.files)
+            addFile(file);
+        return true;
+    }
+
+    /** @return entry of the device, or null if it is not dev nor its base variant */
+    private DeviceEntry readDevice(JsonReader r, Device dev) throws IOException, JSONException {
+        DeviceEntry e = new DeviceEntry();
+        // until the name shows up, everything has to be read
+        boolean wanted = true;
+
+        r.beginObject();
+        while(r.hasNext()) {
+            final String key = r.nextName();
+            if(!wanted) {
+                r.skipValue();
+            } else if(key.equals("name")) {
+                e.name = r.nextString();
+                wanted = e.name.equals(dev.getName()) || e.name.equals(dev.getBaseVariantName());
+            } else if(key.equals("ubuntu_touch") && r.peek() == JsonToken.BEGIN_OBJECT) {
+                JSONObject utouch = (JSONObject)readValue(r);
+                e.reqMultiROM = utouch.getString("req_multirom");
+                e.reqRecovery = utouch.getString("req_recovery");
+            } else if(key.equals("changelogs") && r.peek() == JsonToken.BEGIN_ARRAY) {
+                JSONArray changelogs = (JSONArray)readValue(r);
+                e.changelogs = new Changelog[changelogs.length()];
+                for(int x = 0; x < changelogs.length(); ++x)
+                    e.changelogs[x] = new Changelog(changelogs.getJSONObject(x));
+            } else if(key.equals("files")) {
+                e.files = readFiles(r);
             } else {
-                return false;
+                r.skipValue();
             }
+        }
+        r.endObject();
 
-            JSONObject utouch = o.optJSONObject("ubuntu_touch");
-            if(utouch != null) {
-                m_ubuntuReqMultiROM = utouch.getString("req_multirom");
-                m_ubuntuReqRecovery = utouch.getString("req_recovery");
-            }
+        return (wanted && e.name != null) ? e : null;
+    }
 
-            JSONArray changelogs = o.optJSONArray("changelogs");
-            if(changelogs != null) {
-                m_changelogs = new Changelog[changelogs.length()];
-                for(int x = 0; x < changelogs.length(); ++x)
-                    m_changelogs[x] = new Changelog(changelogs.getJSONObject(x));
+    private ArrayList<InstallationFile> readFiles(JsonReader r) throws IOException, JSONException {
+        ArrayList<InstallationFile> res = new ArrayList<InstallationFile>();
+        r.beginArray();
+        while(r.hasNext()) {
+            String type = null, version = null, url = null, md5 = null, extra = null;
+            long size = -1;
+
+            r.beginObject();
+            while(r.hasNext()) {
+                final String key = r.nextName();
+                if(key.equals("type"))
+                    type = r.nextString();
+                else if(key.equals("version"))
+                    version = r.nextString();
+                else if(key.equals("url"))
+                    url = r.nextString();
+                else if(key.equals("md5"))
+                    md5 = r.nextString();
+                else if(key.equals("size"))
+                    size = r.nextLong();
+                else if(key.equals("extra") && r.peek() == JsonToken.BEGIN_OBJECT)
+                    extra = readValue(r).toString();
+                else
+                    r.skipValue();
             }
+            r.endObject();
 
-            getFileList(o.getJSONArray("files"));
-            return true;
-        } catch (JSONException e) {
-            e.printStackTrace();
+            if(type == null || version == null || url == null || md5 == null || size < 0)
+                throw new JSONException("Incomplete file entry in manifest");
+            res.add(new InstallationFile(type, version, url, md5, size, extra));
         }
+        r.endArray();
+        return res;
+    }
+
+    /** Builds org.json objects for the few parts which are kept as JSON */
+    private static Object readValue(JsonReader r) throws IOException, JSONException {
+        switch(r.peek()) {
+            case BEGIN_OBJECT: {
+                JSONObject o = new JSONObject();
+                r.beginObject();
+                while(r.hasNext())
+                    o.put(r.nextName(), readValue(r));
+                r.endObject();
+                return o;
+            }
+            case BEGIN_ARRAY: {
+                JSONArray a = new JSONArray();
+                r.beginArray();
+                while(r.hasNext())
+                    a.put(readValue(r));
+                r.endArray();
+                return a;
+            }
+            case NUMBER: {
+                String n = r.nextString();
+                try {
+                    return Long.parseLong(n);
+                } catch(NumberFormatException e) {
+                    return Double.parseDouble(n);
+                }
+            }
+            case BOOLEAN:
+                return r.nextBoolean();
+            case NULL:
+                r.nextNull();
+                return JSONObject.NULL;
+            default:
+                return r.nextString();
+        }
+    }
+
+    private static String optString(JsonReader r, String fallback) throws IOException {
+        JsonToken t = r.peek();
+        if(t == JsonToken.STRING || t == JsonToken.NUMBER)
+            return r.nextString();
+        if(t == JsonToken.BOOLEAN)
+            return String.valueOf(r.nextBoolean());
+        r.skipValue();
+        return fallback;
+    }
+
+    private static boolean optBoolean(JsonReader r) throws IOException {
+        JsonToken t = r.peek();
+        if(t == JsonToken.BOOLEAN)
+            return r.nextBoolean();
+        if(t == JsonToken.STRING)
+            return r.nextString().equalsIgnoreCase("true");
+        r.skipValue();
         return false;
     }
 
-    private void getFileList(JSONArray files) throws JSONException {
-        for(int i = 0; i < files.length(); ++i) {
-            InstallationFile file = new InstallationFile();
-            JSONObject f = files.getJSONObject(i);
-
-            file.type = f.getString("type").toLowerCase();
-            file.version = f.getString("version");
-            file.url = f.getString("url");
-            file.md5 = f.getString("md5");
-            file.size = f.getLong("size");
-            file.extra = f.optJSONObject("extra");
-
-            if (file.type.equals("multirom")) {
-                m_multirom = file;
-            } else if(file.type.equals("recovery")) {
-                m_recovery = file;
-            } else if(file.type.equals("uninstaller")) {
-                m_uninstaller = file;
-            } else if(file.type.equals("kernel")) {
-                m_kernels.put(file.version, file);
+    /**
+     * Writes the parsed model in a compact binary form, so that it can be
+     * read back by {@link #readModel(DataInputStream)} instead of parsing
+     * the manifest again after a restart.
+     */
+    void writeModel(DataOutputStream out) throws IOException {
+        out.writeInt(MODEL_VERSION);
+        writeString(out, m_status);
+        writeString(out, m_ubuntuReqMultiROM);
+        writeString(out, m_ubuntuReqRecovery);
+        out.writeBoolean(m_gpgData);
+
+        out.writeInt(m_commands.length);
+        for(String c : m_commands)
+            out.writeUTF(c);
+
+        out.writeInt(m_changelogs != null ? m_changelogs.length : -1);
+        if(m_changelogs != null) {
+            for(Changelog c : m_changelogs) {
+                out.writeUTF(c.name);
+                out.writeUTF(c.url);
             }
         }
+
+        ArrayList<InstallationFile> files = new ArrayList<InstallationFile>();
+        for(InstallationFile f : new InstallationFile[] { m_multirom, m_recovery, m_uninstaller }) {
+            if(f != null)
+                files.add(f);
+        }
+        files.addAll(m_kernels.values());
+
+        out.writeInt(files.size());
+        for(InstallationFile f : files) {
+            out.writeUTF(f.type);
+            out.writeUTF(f.version);
+            out.writeUTF(f.url);
+            out.writeUTF(f.md5);
+            out.writeLong(f.size);
+            writeString(out, f.m_extra);
+        }
+    }
+
+    /** @return model written by writeModel(), null if it is from another version */
+    static Manifest readModel(DataInputStream in) throws IOException {
+        if(in.readInt() != MODEL_VERSION)
+            return null;
+
+        Manifest m = new Manifest();
+        m.m_status = readString(in);
+        m.m_ubuntuReqMultiROM = readString(in);
+        m.m_ubuntuReqRecovery = readString(in);
+        m.m_gpgData = in.readBoolean();
+
+        m.m_commands = new String[in.readInt()];
+        for(int i = 0; i < m.m_commands.length; ++i)
+            m.m_commands[i] = in.readUTF();
+
+        final int changelogs = in.readInt();
+        if(changelogs >= 0) {
+            m.m_changelogs = new Changelog[changelogs];
+            for(int i = 0; i < changelogs; ++i)
+                m.m_changelogs[i] = new Changelog(in.readUTF(), in.readUTF());
+        }
+
+        for(int i = in.readInt(); i > 0; --i) {
+            String type = in.readUTF();
+            String version = in.readUTF();
+            String url = in.readUTF();
+            String md5 = in.readUTF();
+            long size = in.readLong();
+            m.addFile(new InstallationFile(type, version, url, md5, size, readString(in)));
+        }
+        return m;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        out.writeBoolean(str != null);
+        if(str != null)
+            out.writeUTF(str);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private void copyFrom(Manifest o) {
+        m_multirom = o.m_multirom;
+        m_recovery = o.m_recovery;
+        m_uninstaller = o.m_uninstaller;
+        m_kernels = o.m_kernels;
+        m_status = o.m_status;
+        m_ubuntuReqMultiROM = o.m_ubuntuReqMultiROM;
+        m_ubuntuReqRecovery = o.m_ubuntuReqRecovery;
+        m_changelogs = o.m_changelogs;
+        m_gpgData = o.m_gpgData;
+        m_commands = o.m_commands;
+    }
+
+    private void addFile(InstallationFile file) {
+        if (file.type.equals("multirom")) {
+            m_multirom = file;
+        } else if(file.type.equals("recovery")) {
+            m_recovery = file;
+        } else if(file.type.equals("uninstaller")) {
+            m_uninstaller = file;
+        } else if(file.type.equals("kernel")) {
+            m_kernels.put(file.version, file);
+        }
     }
 
     public void compareVersions(MultiROM m, Recovery r, Kernel kernel) {
@@ -185,20 +481,19 @@ public class Manifest {
 
     public void compareVersions(String multirom, String recovery, Kernel kernel) {
         if(multirom != null) {
-            int[] my = MultiROM.parseMultiRomVersions(multirom);
-            int[] upd = MultiROM.parseMultiRomVersions(m_multirom.version);
-            m_multiromHasUpdate = (upd[0] > my[0]) || (upd[0] == my[0] && upd[1] > my[1]);
+            Versions.MultiRomVersion my = Versions.parseMultiRom(multirom);
+            Versions.MultiRomVersion upd = m_multirom != null ?
+                    Versions.parseMultiRom(m_multirom.version) : null;
+            m_multiromHasUpdate = upd != null && (my == null || upd.isNewerThan(my));
         } else
             m_multiromHasUpdate = true;
 
         if(recovery != null) {
-            try {
-                Date my = Recovery.VER_FMT.parse(recovery);
-                Date upd = Recovery.VER_FMT.parse(m_recovery.version);
-                m_recoveryHasUpdate = upd.after(my);
-            } catch(ParseException e) {
-                e.printStackTrace();
-            }
+            Versions.RecoveryVersion my = Versions.parseRecovery(recovery);
+            Versions.RecoveryVersion upd = m_recovery != null ?
+                    Versions.parseRecovery(m_recovery.version) : null;
+            if(my != null && upd != null)
+                m_recoveryHasUpdate = upd.isNewerThan(my);
         } else
             m_recoveryHasUpdate = (m_recovery != null);
 
@@ -209,36 +504,28 @@ public class Manifest {
         if(m_ubuntuReqMultiROM == null)
             return true;
 
-        int[] my = MultiROM.parseMultiRomVersions(m.getVersion());
-        int[] req = MultiROM.parseMultiRomVersions(m_ubuntuReqMultiROM);
-        return (my[0] > req[0]) || (my[0] == req[0] && my[1] >= req[1]);
+        Versions.MultiRomVersion req = Versions.parseMultiRom(m_ubuntuReqMultiROM);
+        if(req == null)
+            return true;
+
+        Versions.MultiRomVersion my = Versions.parseMultiRom(m.getVersion());
+        return my != null && my.isAtLeast(req);
     }
 
     public boolean hasUbuntuReqRecovery(Recovery r) {
         if(m_ubuntuReqRecovery == null)
             return true;
 
-        try {
-            Date my = r.getVersion();
-            Date req = Recovery.VER_FMT.parse(m_ubuntuReqRecovery);
-            return my.compareTo(req) >= 0;
-        } catch(ParseException e) {
-            e.printStackTrace();
-        }
-        return true;
+        Versions.RecoveryVersion req = Versions.parseRecovery(m_ubuntuReqRecovery);
+        return req == null || r.getVersion().isAtLeast(req);
     }
 
     public String getUbuntuReqMultiROM() {
         return m_ubuntuReqMultiROM;
     }
 
-    public Date getUbuntuReqRecovery() {
-        try {
-            return Recovery.VER_FMT.parse(m_ubuntuReqRecovery);
-        } catch(ParseException e) {
-            e.printStackTrace();
-        }
-        return null;
+    public Versions.RecoveryVersion getUbuntuReqRecovery() {
+        return Versions.parseRecovery(m_ubuntuReqRecovery);
     }
 
     public boolean hasMultiromUpdate() {
@@ -257,13 +544,8 @@ public class Manifest {
         return m_multirom.version;
     }
 
-    public Date getRecoveryVersion() {
-        try {
-            return Recovery.VER_FMT.parse(m_recovery.version);
-        } catch(ParseException e) {
-            e.printStackTrace();
-            return null;
-        }
+    public Versions.RecoveryVersion getRecoveryVersion() {
+        return Versions.parseRecovery(m_recovery.version);
     }
 
     public boolean hasCommand(String cmd) {
@@ -282,8 +564,8 @@ public class Manifest {
         return null;
     }
 
-    public LinkedHashMap<String, InstallationFile> getKernels() {
-        return m_kernels;
+    public Map<String, InstallationFile> getKernels() {
+        return Collections.unmodifiableMap(m_kernels);
     }
 
     public InstallationFile getMultiromFile() { return m_multirom; }
@@ -0,0 +1,330 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+
+/**
+ * Keeps the last downloaded manifest.json and its signature in the cache
+ * dir, together with the validators (ETag, Last-Modified) the server
+ * sent. Refreshes are conditional GETs, so an unchanged manifest
+ * costs one small 304 response and the JSON parser doesn't have to run
+ * again - the parsed models are kept in memory per device, and in a compact
+ * binary file next to the manifest, tagged with the validator of the
+ * manifest they were parsed from, so that they survive a restart too.
+ * Signatures are remembered by {@link Gpg} itself.
+ *
+ * Callers should hold the lock of the instance for the whole
+ * fetch-verify-parse sequence.
+ */
+public class ManifestCache {
+    private static final String TAG = "MROMMgr::ManifestCache";
+
+    public static final int FETCH_FAILED        = 0;
+    public static final int FETCH_DOWNLOADED    = 1;
+    public static final int FETCH_NOT_MODIFIED  = 2;
+
+    private static final String MANIFEST_NAME = "manifest.json";
+    private static final String SIGN_NAME = "manifest.json.asc";
+    private static final String META_NAME = "manifest.meta";
+    private static final String MODEL_SUFFIX = ".model";
+
+    private static ManifestCache s_instance = null;
+    public static synchronized ManifestCache instance() {
+        if(s_instance == null)
+            s_instance = new ManifestCache(MgrApp.getAppContext().getCacheDir());
+        return s_instance;
+    }
+
+    private ManifestCache(File dir) {
+        m_dir = dir;
+        loadMeta();
+    }
+
+    public File getManifestFile() {
+        return new File(m_dir, MANIFEST_NAME);
+    }
+
+    public File getSignFile() {
+        return new File(m_dir, SIGN_NAME);
+    }
+
+    /**
+     * Makes sure the cached manifest is the current one from url.
+     * @param withSignature download the .asc file too when the manifest changes
+     */
+    public synchronized int fetch(String url, boolean withSignature) {
+        final boolean conditional = url.equals(m_url) && getManifestFile().exists() &&
+                (!withSignature || getSignFile().exists());
+
+        File tmp = new File(m_dir, MANIFEST_NAME + ".tmp");
+        int res = download(url, tmp, conditional);
+        if(res != FETCH_DOWNLOADED) {
+            tmp.delete();
+            return res;
+        }
+
+        if(withSignature) {
+            File tmpSign = new File(m_dir, SIGN_NAME + ".tmp");
+            if(download(url + ".asc", tmpSign, false) != FETCH_DOWNLOADED) {
+                tmp.delete();
+                tmpSign.delete();
+                return FETCH_FAILED;
+            }
+            tmpSign.renameTo(getSignFile());
+        } else {
+            getSignFile().delete();
+        }
+
+        tmp.renameTo(getManifestFile());
+
+        m_url = url;
+        m_etag = m_lastEtag;
+        m_lastModified = m_lastLastModified;
+        clearModels();
+        saveMeta();
+        return FETCH_DOWNLOADED;
+    }
+
+    private int download(String url, File dest, final boolean conditional) {
+        m_lastEtag = null;
+        m_lastLastModified = null;
+
+        HttpClient.Response r = null;
+        FileOutputStream out = null;
+        boolean complete = false;
+        try {
+            r = HttpClient.instance().get(url, new HttpClient.ConnectionSetup() {
+                @Override
+                public void onConnecting(HttpURLConnection conn) {
+                    // HttpResponseCache would hide the 304 from us
+                    conn.setUseCaches(false);
+                    if(conditional && m_etag != null)
+                        conn.addRequestProperty("If-None-Match", m_etag);
+                    if(conditional && m_lastModified != null)
+                        conn.addRequestProperty("If-Modified-Since", m_lastModified);
+                }
+            });
+
+            final int code = r.getCode();
+            if(code == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+                Log.d(TAG, url + " was not modified");
+                complete = true;
+                return FETCH_NOT_MODIFIED;
+            }
+
+            if(code != HttpURLConnection.HTTP_OK) {
+                Log.e(TAG, "Failed to download " + url + ", code " + code);
+                return FETCH_FAILED;
+            }
+
+            out = new FileOutputStream(dest);
+            InputStream in = r.getInputStream();
+            byte[] buff = new byte[8192];
+            for(int len; (len = in.read(buff)) != -1; ) {
+                out.write(buff, 0, len);
+                r.addBytes(len);
+            }
+            complete = true;
+
+            m_lastEtag = r.getConnection().getHeaderField("ETag");
+            m_lastLastModified = r.getConnection().getHeaderField("Last-Modified");
+            return FETCH_DOWNLOADED;
+        } catch(IOException e) {
+            e.printStackTrace();
+            return FETCH_FAILED;
+        } finally {
+            Utils.close(out);
+            if(r != null)
+                r.close(complete);
+        }
+    }
+
+    /** Forgets everything, the next fetch downloads the manifest again */
+    public synchronized void invalidate() {
+        m_url = null;
+        m_etag = null;
+        m_lastModified = null;
+        clearModels();
+        new File(m_dir, META_NAME).delete();
+    }
+
+    /** @return model parsed from the current cached manifest for device, or null */
+    public synchronized Manifest getModel(String device) {
+        Manifest model = m_models.get(device);
+        if(model == null) {
+            model = loadModel(device);
+            if(model != null)
+                m_models.put(device, model);
+        }
+        return model;
+    }
+
+    public synchronized void setModel(String device, Manifest model) {
+        m_models.put(device, model);
+        saveModel(device, model);
+    }
+
+    private File getModelFile(String device) {
+        return new File(m_dir, MANIFEST_NAME + "." + device + MODEL_SUFFIX);
+    }
+
+    /**
+     * @return what identifies the cached manifest's content on the server,
+     *         null if the server sent neither ETag nor Last-Modified
+     */
+    private String getValidator() {
+        if(m_etag != null)
+            return "etag:" + m_etag;
+        if(m_lastModified != null)
+            return "modified:" + m_lastModified;
+        return null;
+    }
+
+    private Manifest loadModel(String device) {
+        final String validator = getValidator();
+        File f = getModelFile(device);
+        if(validator == null || m_url == null || !f.exists())
+            return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if(!m_url.equals(in.readUTF()) || !validator.equals(in.readUTF())) {
+                Log.d(TAG, f.getName() + " is from an older manifest");
+                return null;
+            }
+            return Manifest.readModel(in);
+        } catch(IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            Utils.close(in);
+        }
+    }
+
+    private void saveModel(String device, Manifest model) {
+        final String validator = getValidator();
+        if(validator == null || m_url == null)
+            return;
+
+        File f = getModelFile(device);
+        File tmp = new File(f.getAbsolutePath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeUTF(m_url);
+            out.writeUTF(validator);
+            model.writeModel(out);
+            out.close();
+            out = null;
+            tmp.renameTo(f);
+        } catch(IOException e) {
+            // e.g. a string too long for writeUTF(), the model stays in memory only
+            e.printStackTrace();
+            tmp.delete();
+        } finally {
+            Utils.close(out);
+        }
+    }
+
+    private void clearModels() {
+        m_models.clear();
+        File[] files = m_dir.listFiles();
+        if(files == null)
+            return;
+        for(File f : files) {
+            if(f.getName().startsWith(MANIFEST_NAME + ".") && f.getName().endsWith(MODEL_SUFFIX))
+                f.delete();
+        }
+    }
+
+    private void loadMeta() {
+        File f = new File(m_dir, META_NAME);
+        if(!f.exists())
+            return;
+
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(f));
+            for(String line; (line = r.readLine()) != null; ) {
+                int idx = line.indexOf('=');
+                if(idx == -1)
+                    continue;
+
+                final String key = line.substring(0, idx);
+                final String val = line.substring(idx+1);
+                if(key.equals("url"))
+                    m_url = val;
+                else if(key.equals("etag"))
+                    m_etag = val.isEmpty() ? null : val;
+                else if(key.equals("last_modified"))
+                    m_lastModified = val.isEmpty() ? null : val;
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+            m_url = null;
+        } finally {
+            Utils.close(r);
+        }
+    }
+
+    private void saveMeta() {
+        File f = new File(m_dir, META_NAME);
+        File tmp = new File(m_dir, META_NAME + ".tmp");
+        FileWriter w = null;
+        try {
+            w = new FileWriter(tmp);
+            w.write("url=" + m_url + "\n" +
+                    "etag=" + (m_etag != null ? m_etag : "") + "\n" +
+                    "last_modified=" + (m_lastModified != null ? m_lastModified : "") + "\n");
+            w.close();
+            w = null;
+            tmp.renameTo(f);
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.close(w);
+        }
+    }
+
+    private File m_dir;
+    private String m_url;
+    private String m_etag;
+    private String m_lastModified;
+    private HashMap<String, Manifest> m_models = new HashMap<String, Manifest>();
+
+    // validators of the last download(), only committed once it succeeds
+    private String m_lastEtag;
+    private String m_lastLastModified;
+}
@@ -33,6 +33,10 @@ public class MgrApp extends Application {
         super.onCreate();
         m_context = getApplicationContext();
         m_needPkgNameFixup = BuildConfig.DEBUG && m_context.getPackageName().endsWith(".debug");
+        // sets up keep-alive before the first connection is made
+        HttpClient.instance();
+        SdcardPathResolver.instance().registerMountReceiver(m_context);
+        AssetExtractor.instance().start();
     }
 
     public static SharedPreferences getPreferences() {
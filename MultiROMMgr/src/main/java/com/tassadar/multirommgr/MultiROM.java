@@ -17,17 +17,11 @@
 
 package com.tassadar.multirommgr;
 
-import android.content.ContentValues;
-import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
-import com.tassadar.multirommgr.romlistwidget.RomListDataProvider;
-import com.tassadar.multirommgr.romlistwidget.RomListOpenHelper;
-import com.tassadar.multirommgr.romlistwidget.RomListWidgetProvider;
-
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -274,7 +268,6 @@ public class MultiROM {
         Collections.sort(m_roms, new Rom.NameComparator());
 
         loadRomIconData();
-        storeRomDataToProvider();
     }
 
     private void loadRomIconData() {
@@ -345,38 +338,6 @@ public class MultiROM {
         m_predefIcons = Shell.SU.run("IFS=$'\\n'; \"%s/busybox\" ls -1 \"%s/icons\";", m_path, m_path);
     }
 
-    private void storeRomDataToProvider() {
-        Rom rom;
-        Context ctx = MgrApp.getAppContext();
-        Resources res = ctx.getResources();
-        ContentValues[] vals = new ContentValues[m_roms.size()];
-
-        for(int i = 0; i < m_roms.size(); ++i) {
-            rom = m_roms.get(i);
-            vals[i] = new ContentValues();
-            vals[i].put(RomListOpenHelper.KEY_NAME, rom.name);
-            vals[i].put(RomListOpenHelper.KEY_TYPE, rom.type);
-            vals[i].put(RomListOpenHelper.KEY_ACTIVE, rom.active);
-            vals[i].put(RomListOpenHelper.KEY_BASE_PATH, rom.base_path);
-            vals[i].put(RomListOpenHelper.KEY_ICON_PATH, rom.icon_path);
-            vals[i].put(RomListOpenHelper.KEY_PARTITION_NAME, rom.partition_name);
-            vals[i].put(RomListOpenHelper.KEY_PARTITION_MOUNT_PATH, rom.partition_mount_path);
-            vals[i].put(RomListOpenHelper.KEY_PARTITION_UUID, rom.partition_uuid);
-            vals[i].put(RomListOpenHelper.KEY_PARTITION_FS, rom.partition_fs);
-            vals[i].put(RomListOpenHelper.KEY_PARTITION_INFO, rom.partition_info);
-
-            if(rom.icon_hash != null)
-                vals[i].put(RomListOpenHelper.KEY_ICON_NAME, rom.icon_hash);
-            else
-                vals[i].put(RomListOpenHelper.KEY_ICON_NAME, res.getResourceName(rom.icon_id));
-        }
-
-        ctx.getContentResolver().delete(RomListDataProvider.CONTENT_URI, null, null);
-        ctx.getContentResolver().bulkInsert(RomListDataProvider.CONTENT_URI, vals);
-
-        RomListWidgetProvider.notifyChanged();
-    }
-
     public void deleteUnusedIcons(Set<String> usedIconHashes) {
         String hash;
         File iconDir = Rom.getIconsDir();
@@ -401,7 +362,7 @@ public class MultiROM {
 
     public void renameRom(Rom rom, String new_name) {
         if(rom.type == Rom.ROM_PRIMARY) {
-            String b = Utils.extractAsset("busybox");
+            String b = AssetExtractor.getPath(AssetExtractor.BUSYBOX);
             if(b == null) {
                 Log.e(TAG, "Failed to extract busybox!");
                 return;
@@ -465,23 +426,8 @@ public class MultiROM {
     }
 
     public boolean hasBootRomReqMultiROM() {
-        int[] my = parseMultiRomVersions(m_version);
-        int[] req = parseMultiRomVersions(MultiROM.MIN_BOOT_ROM_VER);
-        return (my[0] > req[0]) || (my[0] == req[0] && my[1] >= req[1]);
-    }
-
-    public static int[] parseMultiRomVersions(String ver) {
-        int[] res = { 0, 0 };
-        if(!Utils.isNumeric(ver.charAt(ver.length()-1))) {
-            res[1] = (int)ver.charAt(ver.length()-1);
-            ver = ver.substring(0, ver.length()-1);
-        }
-        try {
-            res[0] = Integer.valueOf(ver);
-        } catch(NumberFormatException e) {
-            e.printStackTrace();
-        }
-        return res;
+        Versions.MultiRomVersion my = Versions.parseMultiRom(m_version);
+        return my != null && my.isAtLeast(Versions.parseMultiRom(MIN_BOOT_ROM_VER));
     }
 
     public String getNewRomFolder(String base) {
@@ -628,27 +574,7 @@ public class MultiROM {
         rom.icon_hash = hash;
         rom.resetIconDrawable();
 
-        ContentValues val = new ContentValues();
-        if(rom.icon_id == R.id.user_defined_icon)
-            val.put(RomListOpenHelper.KEY_ICON_NAME, rom.icon_hash);
-        else {
-            String resName = MgrApp.getAppContext().getResources().getResourceName(rom.icon_id);
-            val.put(RomListOpenHelper.KEY_ICON_NAME, resName);
-        }
-
-        MgrApp.getCntnResolver().update(RomListDataProvider.CONTENT_URI, val,
-                RomListOpenHelper.KEY_NAME + "='" + rom.name + "' AND " +
-                RomListOpenHelper.KEY_TYPE + "=" + rom.type  + " AND " +
-                RomListOpenHelper.KEY_ACTIVE + "=" + rom.active  + " AND " +
-                RomListOpenHelper.KEY_BASE_PATH + "='" + rom.base_path + "' AND " +
-                RomListOpenHelper.KEY_ICON_PATH + "='" + rom.icon_path + "' AND " +
-                RomListOpenHelper.KEY_PARTITION_NAME + "='" + rom.partition_name + "' AND " +
-                RomListOpenHelper.KEY_PARTITION_MOUNT_PATH + "='" + rom.partition_mount_path + "' AND " +
-                RomListOpenHelper.KEY_PARTITION_UUID + "='" + rom.partition_uuid + "' AND " +
-                RomListOpenHelper.KEY_PARTITION_FS + "='" + rom.partition_fs + "' AND " +
-                RomListOpenHelper.KEY_PARTITION_INFO + "='" + rom.partition_info  + "'",
-                null);
-        RomListWidgetProvider.notifyChanged();
+        RomRepository.instance().storeRomIcon(rom);
     }
 
     public String getVersion() {
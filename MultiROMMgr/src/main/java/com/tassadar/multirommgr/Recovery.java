@@ -17,84 +17,68 @@
 
 package com.tassadar.multirommgr;
 
+import android.content.SharedPreferences;
 import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.List;
-
-import eu.chainfire.libsuperuser.Shell;
-
 public class Recovery {
     private static final String TAG = "MROMMgr::Recovery";
 
-    public static final DateFormat VER_FULL_FMT = new SimpleDateFormat("'mrom'yyyyMMdd-mm");
-    public static final DateFormat VER_SHORT_FMT = new SimpleDateFormat("'mrom'yyyyMMdd");
-    public static DateFormat VER_FMT = VER_FULL_FMT;
-    public static final DateFormat DISPLAY_FMT = new SimpleDateFormat("yyyy-MM-dd (m)");
+    private static final String PREF_HDR_KEY = "recovery_hdr_key";
+    private static final String PREF_HDR_NAME = "recovery_hdr_name";
 
-    private Date m_version;
+    private Versions.RecoveryVersion m_version;
 
     public boolean findRecoveryVersion(Device dev) {
-        String p = Utils.extractAsset("bbootimg");
-        if(p == null) {
-            Log.e(TAG, "Failed to extract bbootimg!");
+        String name = getImageName(dev);
+        if(name == null)
             return false;
-        }
 
-        if(Utils.isSELinuxEnforcing())
-            Utils.chcon(Utils.CHCON_BLOCK_ACCESS, p);
-
-        List<String> out = Shell.SU.run(p + " -j " + dev.getRecoveryDev());
-
-        if(Utils.isSELinuxEnforcing())
-            Utils.chcon(Utils.CHCON_ORIGINAL, p);
-
-        if(out == null || out.isEmpty())
+        m_version = Versions.parseRecovery(name);
+        if(m_version == null)
             return false;
 
-        StringBuilder b = new StringBuilder();
-        for(int i = 0; i < out.size(); ++i)
-            b.append(out.get(i));
-
-        try {
-            JSONObject o = (JSONObject)new JSONTokener(b.toString()).nextValue();
-            if(o == null)
-                return false;
-
-            o = o.getJSONObject("boot_img_hdr");
-            String name = o.getString("name");
-
-            if (name.length() > 12) {
-                m_version = VER_FULL_FMT.parse(name);
-                VER_FMT = VER_FULL_FMT;
-            } else {
-                m_version = VER_SHORT_FMT.parse(name);
-                VER_FMT = VER_SHORT_FMT;
-            }
+        Log.d(TAG, "Got recovery version " + m_version.toString());
+        return true;
+    }
 
-            Log.d(TAG, "Got recovery version " + m_version.toString());
-            return true;
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return false;
-        } catch (ParseException e) {
-            e.printStackTrace();
-            return false;
+    /**
+     * Name field of the recovery image header, which holds the version.
+     * The recovery can't change without us flashing it, so the name is
+     * remembered for the device until reboot or {@link #invalidateCache()}.
+     */
+    private static String getImageName(Device dev) {
+        final String bootId = Utils.getBootId();
+        final String key = dev.getRecoveryDev() + " " + bootId;
+
+        SharedPreferences p = MgrApp.getPreferences();
+        if(bootId != null && key.equals(p.getString(PREF_HDR_KEY, null)))
+            return p.getString(PREF_HDR_NAME, null);
+
+        BootImgHeader hdr = BootImgHeader.read(dev.getRecoveryDev());
+        if(hdr == null)
+            return null;
+
+        if(bootId != null) {
+            p.edit().putString(PREF_HDR_KEY, key)
+                    .putString(PREF_HDR_NAME, hdr.name)
+                    .apply();
         }
+        return hdr.name;
+    }
+
+    /** Call after the recovery partition was written */
+    public static void invalidateCache() {
+        MgrApp.getPreferences().edit()
+                .remove(PREF_HDR_KEY)
+                .remove(PREF_HDR_NAME)
+                .apply();
     }
 
     public String getVersionString() {
-        return VER_FMT.format(m_version);
+        return m_version.toString();
     }
 
-    public Date getVersion() {
+    public Versions.RecoveryVersion getVersion() {
         return m_version;
     }
 }
@@ -0,0 +1,320 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.tassadar.multirommgr.romlistwidget.RomListDataProvider;
+import com.tassadar.multirommgr.romlistwidget.RomListOpenHelper;
+import com.tassadar.multirommgr.romlistwidget.RomListWidgetProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Process-wide owner of ROM discovery. The app, the widget and the boot
+ * dialog all go through here, so only one root scan runs at a time. Whoever
+ * asks while a scan is running gets the result of a new scan which starts
+ * right after it, shared with everyone else who asked meanwhile. This is
+ * also the only place which writes into {@link RomListDataProvider}.
+ */
+public class RomRepository {
+    private static final String TAG = "MROMMgr::RomRepository";
+
+    public static final int RES_OK              = 0x00;
+    public static final int RES_NO_MULTIROM     = 0x01;
+    public static final int RES_FAIL_MROM_VER   = 0x02;
+
+    public interface RomRepositoryListener {
+        /** Called from the thread which ran the scan, not the UI thread. */
+        public void onRomsRefreshed(Snapshot snapshot);
+    }
+
+    public interface ScanProgressListener {
+        /** MultiROM was found, its ROMs are being listed now. Called from the scan's thread. */
+        public void onGettingRoms();
+    }
+
+    public static class Snapshot {
+        private Snapshot(int code, MultiROM multirom) {
+            this.code = code;
+            this.multirom = multirom;
+            this.roms = multirom != null ?
+                    Collections.unmodifiableList(new ArrayList<Rom>(multirom.getRoms())) :
+                    Collections.<Rom>emptyList();
+            this.timestamp = SystemClock.elapsedRealtime();
+        }
+
+        public final int code;
+        public final MultiROM multirom;
+        public final List<Rom> roms;
+        public final long timestamp;
+    }
+
+    private static class Scan {
+        public synchronized void addProgressListener(ScanProgressListener l) {
+            if(l == null)
+                return;
+            if(m_gettingRoms)
+                l.onGettingRoms();
+            else
+                m_progress.add(l);
+        }
+
+        public void onGettingRoms() {
+            ArrayList<ScanProgressListener> listeners;
+            synchronized(this) {
+                m_gettingRoms = true;
+                listeners = new ArrayList<ScanProgressListener>(m_progress);
+                m_progress.clear();
+            }
+            for(ScanProgressListener l : listeners)
+                l.onGettingRoms();
+        }
+
+        public Snapshot await() {
+            try {
+                m_done.await();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new Snapshot(RES_NO_MULTIROM, null);
+            }
+            return m_result;
+        }
+
+        public void complete(Snapshot s) {
+            m_result = s;
+            m_done.countDown();
+        }
+
+        private final CountDownLatch m_done = new CountDownLatch(1);
+        private volatile Snapshot m_result;
+        private final ArrayList<ScanProgressListener> m_progress = new ArrayList<ScanProgressListener>();
+        private boolean m_gettingRoms;
+    }
+
+    private static RomRepository s_instance = null;
+    public static synchronized RomRepository instance() {
+        if(s_instance == null)
+            s_instance = new RomRepository();
+        return s_instance;
+    }
+
+    private RomRepository() {
+    }
+
+    public synchronized Snapshot getSnapshot() {
+        return m_snapshot;
+    }
+
+    public synchronized boolean isRefreshing() {
+        return m_inFlight != null;
+    }
+
+    public void addListener(RomRepositoryListener l) {
+        synchronized(m_listeners) {
+            if(!m_listeners.contains(l))
+                m_listeners.add(l);
+        }
+    }
+
+    public void removeListener(RomRepositoryListener l) {
+        synchronized(m_listeners) {
+            m_listeners.remove(l);
+        }
+    }
+
+    public Snapshot refresh() {
+        return refresh(null);
+    }
+
+    /**
+     * Runs ROM discovery and blocks until it is done. The running scan may
+     * have listed the ROMs before this was called, so its result isn't used.
+     * A new scan is queued after it instead, and all callers which come
+     * before that one starts share it.
+     */
+    public Snapshot refresh(ScanProgressListener progress) {
+        final Scan scan;
+        Scan previous = null;
+        boolean join = false;
+        synchronized(this) {
+            if(m_inFlight == null) {
+                scan = m_inFlight = new Scan();
+            } else if(m_queued == null) {
+                previous = m_inFlight;
+                scan = m_queued = new Scan();
+            } else {
+                scan = m_queued;
+                join = true;
+            }
+        }
+
+        scan.addProgressListener(progress);
+        if(join) {
+            Log.d(TAG, "Joining ROM scan which is queued already");
+            return scan.await();
+        }
+
+        // the previous scan makes this one m_inFlight once it is done
+        if(previous != null) {
+            Log.d(TAG, "ROM scan is running, queueing another one");
+            previous.await();
+        }
+
+        Snapshot res = new Snapshot(RES_NO_MULTIROM, null);
+        try {
+            res = discover(scan);
+        } finally {
+            synchronized(this) {
+                m_inFlight = m_queued;
+                m_queued = null;
+                m_snapshot = res;
+            }
+            scan.complete(res);
+        }
+
+        notifyListeners(res);
+        return res;
+    }
+
+    /**
+     * Starts a scan in background, unless one is already queued - its
+     * result will be delivered to listeners and the widget anyway.
+     */
+    public void refreshAsync() {
+        synchronized(this) {
+            if(m_queued != null)
+                return;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, "RomRepository").start();
+    }
+
+    /**
+     * @return MultiROM of the last scan. If there was none, MultiROM is only
+     *         located and its version read, without listing ROMs or
+     *         touching the widget's data. Null if it isn't installed.
+     */
+    public MultiROM getMultiROM() {
+        Snapshot s = getSnapshot();
+        if(s != null && s.multirom != null)
+            return s.multirom;
+
+        MultiROM m = new MultiROM();
+        if(!m.findMultiROMDir() || !m.findVersion())
+            return null;
+        return m;
+    }
+
+    private Snapshot discover(Scan scan) {
+        MultiROM m = new MultiROM();
+        if(!m.findMultiROMDir())
+            return new Snapshot(RES_NO_MULTIROM, null);
+
+        if(!m.findVersion())
+            return new Snapshot(RES_FAIL_MROM_VER, null);
+
+        scan.onGettingRoms();
+        m.findRoms();
+        storeRomDataToProvider(m.getRoms());
+        return new Snapshot(RES_OK, m);
+    }
+
+    private void notifyListeners(Snapshot s) {
+        ArrayList<RomRepositoryListener> listeners;
+        synchronized(m_listeners) {
+            listeners = new ArrayList<RomRepositoryListener>(m_listeners);
+        }
+
+        for(RomRepositoryListener l : listeners)
+            l.onRomsRefreshed(s);
+    }
+
+    private void storeRomDataToProvider(List<Rom> roms) {
+        Rom rom;
+        Context ctx = MgrApp.getAppContext();
+        Resources res = ctx.getResources();
+        ContentValues[] vals = new ContentValues[roms.size()];
+
+        for(int i = 0; i < roms.size(); ++i) {
+            rom = roms.get(i);
+            vals[i] = new ContentValues();
+            vals[i].put(RomListOpenHelper.KEY_NAME, rom.name);
+            vals[i].put(RomListOpenHelper.KEY_TYPE, rom.type);
+            vals[i].put(RomListOpenHelper.KEY_ACTIVE, rom.active);
+            vals[i].put(RomListOpenHelper.KEY_BASE_PATH, rom.base_path);
+            vals[i].put(RomListOpenHelper.KEY_ICON_PATH, rom.icon_path);
+            vals[i].put(RomListOpenHelper.KEY_PARTITION_NAME, rom.partition_name);
+            vals[i].put(RomListOpenHelper.KEY_PARTITION_MOUNT_PATH, rom.partition_mount_path);
+            vals[i].put(RomListOpenHelper.KEY_PARTITION_UUID, rom.partition_uuid);
+            vals[i].put(RomListOpenHelper.KEY_PARTITION_FS, rom.partition_fs);
+            vals[i].put(RomListOpenHelper.KEY_PARTITION_INFO, rom.partition_info);
+
+            if(rom.icon_hash != null)
+                vals[i].put(RomListOpenHelper.KEY_ICON_NAME, rom.icon_hash);
+            else
+                vals[i].put(RomListOpenHelper.KEY_ICON_NAME, res.getResourceName(rom.icon_id));
+        }
+
+        ctx.getContentResolver().delete(RomListDataProvider.CONTENT_URI, null, null);
+        ctx.getContentResolver().bulkInsert(RomListDataProvider.CONTENT_URI, vals);
+
+        RomListWidgetProvider.notifyChanged();
+    }
+
+    public void storeRomIcon(Rom rom) {
+        ContentValues val = new ContentValues();
+        if(rom.icon_id == R.id.user_defined_icon)
+            val.put(RomListOpenHelper.KEY_ICON_NAME, rom.icon_hash);
+        else {
+            String resName = MgrApp.getAppContext().getResources().getResourceName(rom.icon_id);
+            val.put(RomListOpenHelper.KEY_ICON_NAME, resName);
+        }
+
+        MgrApp.getCntnResolver().update(RomListDataProvider.CONTENT_URI, val,
+                RomListOpenHelper.KEY_NAME + "='" + rom.name + "' AND " +
+                RomListOpenHelper.KEY_TYPE + "=" + rom.type  + " AND " +
+                RomListOpenHelper.KEY_ACTIVE + "=" + rom.active  + " AND " +
+                RomListOpenHelper.KEY_BASE_PATH + "='" + rom.base_path + "' AND " +
+                RomListOpenHelper.KEY_ICON_PATH + "='" + rom.icon_path + "' AND " +
+                RomListOpenHelper.KEY_PARTITION_NAME + "='" + rom.partition_name + "' AND " +
+                RomListOpenHelper.KEY_PARTITION_MOUNT_PATH + "='" + rom.partition_mount_path + "' AND " +
+                RomListOpenHelper.KEY_PARTITION_UUID + "='" + rom.partition_uuid + "' AND " +
+                RomListOpenHelper.KEY_PARTITION_FS + "='" + rom.partition_fs + "' AND " +
+                RomListOpenHelper.KEY_PARTITION_INFO + "='" + rom.partition_info  + "'",
+                null);
+        RomListWidgetProvider.notifyChanged();
+    }
+
+    private Scan m_inFlight;
+    private Scan m_queued;
+    private Snapshot m_snapshot;
+    private final ArrayList<RomRepositoryListener> m_listeners = new ArrayList<RomRepositoryListener>();
+}
@@ -0,0 +1,175 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+import eu.chainfire.libsuperuser.Shell;
+
+/**
+ * Translates sdcard paths as the app sees them to paths root can use -
+ * with multi-user emulated storage, those are different. The mapping
+ * between the two roots is found once per boot by writing a sentinel file
+ * and looking for it as root, every lookup after that is just a string
+ * replacement. The mapping is remembered across app restarts and thrown
+ * away when the boot id changes or storage gets (re)mounted.
+ */
+public class SdcardPathResolver {
+    private static final String TAG = "MROMMgr::SdcardPathResolver";
+
+    private static final String SENTINEL_NAME = ".multirom_path_sentinel";
+    private static final String PREF_ROOT = "sdcard_su_root";
+    private static final String PREF_APP_ROOT = "sdcard_su_app_root";
+    private static final String PREF_BOOT_ID = "sdcard_su_boot_id";
+
+    private static final String[] CANDIDATES = {
+            "/sdcard", "/storage/emulated/0", "/storage/emulated/legacy",
+            "/mnt/shell/emulated/0", "/data/media/0", "/data/media"
+    };
+
+    private static SdcardPathResolver s_instance = null;
+    public static synchronized SdcardPathResolver instance() {
+        if(s_instance == null)
+            s_instance = new SdcardPathResolver();
+        return s_instance;
+    }
+
+    private SdcardPathResolver() {
+        SharedPreferences p = MgrApp.getPreferences();
+        final String bootId = Utils.getBootId();
+        if(bootId != null && bootId.equals(p.getString(PREF_BOOT_ID, null))) {
+            m_appRoot = p.getString(PREF_APP_ROOT, null);
+            m_suRoot = p.getString(PREF_ROOT, null);
+        }
+    }
+
+    /** Forgets the mapping when storage is mounted or unmounted */
+    public void registerMountReceiver(Context ctx) {
+        IntentFilter f = new IntentFilter();
+        f.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        f.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        f.addAction(Intent.ACTION_MEDIA_EJECT);
+        f.addDataScheme("file");
+        ctx.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Log.d(TAG, "Storage changed (" + intent.getAction() + "), forgetting root path");
+                invalidate();
+            }
+        }, f);
+    }
+
+    public synchronized void invalidate() {
+        m_appRoot = null;
+        m_suRoot = null;
+        MgrApp.getPreferences().edit()
+                .remove(PREF_ROOT)
+                .remove(PREF_APP_ROOT)
+                .remove(PREF_BOOT_ID)
+                .apply();
+    }
+
+    /**
+     * @return path under which root sees f, or null if it can't be found.
+     *         Does not check if f exists.
+     */
+    public synchronized File resolve(File f) {
+        final String path = f.getAbsolutePath();
+        final String appRoot = Environment.getExternalStorageDirectory().getAbsolutePath();
+
+        String tail = null;
+        if(path.startsWith(appRoot + "/"))
+            tail = path.substring(appRoot.length());
+        else if(path.startsWith("/sdcard/"))
+            tail = path.substring("/sdcard".length());
+
+        // not on the sdcard at all, root sees it where we do
+        if(tail == null)
+            return f;
+
+        if(m_suRoot == null || !appRoot.equals(m_appRoot)) {
+            if(!learn(appRoot))
+                return null;
+        }
+        return new File(m_suRoot + tail);
+    }
+
+    private boolean learn(String appRoot) {
+        final String token = UUID.randomUUID().toString();
+        File sentinel = new File(appRoot, SENTINEL_NAME);
+        FileWriter w = null;
+        try {
+            w = new FileWriter(sentinel);
+            w.write(token);
+        } catch(IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            Utils.close(w);
+        }
+
+        StringBuilder b = new StringBuilder();
+        appendCandidate(b, appRoot, token);
+        for(String c : CANDIDATES)
+            appendCandidate(b, c, token);
+        b.append("exit 0;");
+
+        List<String> out = Shell.SU.run(b.toString());
+        sentinel.delete();
+
+        if(out == null || out.isEmpty()) {
+            Log.e(TAG, "Failed to find " + appRoot + " as root");
+            return false;
+        }
+
+        m_appRoot = appRoot;
+        m_suRoot = out.get(0);
+        Log.d(TAG, "Root sees " + m_appRoot + " as " + m_suRoot);
+
+        final String bootId = Utils.getBootId();
+        if(bootId != null) {
+            MgrApp.getPreferences().edit()
+                    .putString(PREF_ROOT, m_suRoot)
+                    .putString(PREF_APP_ROOT, m_appRoot)
+                    .putString(PREF_BOOT_ID, bootId)
+                    .apply();
+        }
+        return true;
+    }
+
+    private static void appendCandidate(StringBuilder b, String root, String token) {
+        b.append("if [ \"$(cat \"").append(root).append('/').append(SENTINEL_NAME)
+                .append("\" 2>/dev/null)\" = \"").append(token)
+                .append("\" ]; then echo \"").append(root).append("\"; exit 0; fi; ");
+    }
+
+    private String m_appRoot;
+    private String m_suRoot;
+}
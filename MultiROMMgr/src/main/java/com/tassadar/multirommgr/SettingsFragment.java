@@ -22,8 +22,10 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final String GENERAL_UPDATE_CHECK =  "general_update_check";
     public static final String GENERAL_AUTO_REBOOT = "general_auto_reboot";
     public static final String GENERAL_DOWNLOAD_DIR = "general_download_dir";
+    public static final String GENERAL_INTERNAL_STAGING = "general_internal_staging";
     public static final String UTOUCH_SHOW_HIDDEN = "utouch_show_hidden";
     public static final String UTOUCH_DELETE_FILES = "utouch_delete_files";
+    public static final String UTOUCH_DIRECT_INSTALL = "utouch_direct_install";
     public static final String ABOUT_VERSION = "about_version";
     public static final String ABOUT_LICENSES = "about_licenses";
     public static final String DEV_ENABLE = "dev_enable";
@@ -83,6 +85,8 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         } else if(key.equals(GENERAL_DOWNLOAD_DIR)) {
             Utils.setDownloadDir(p.getString(key, Utils.getDefaultDownloadDir()));
             updatePrefText();
+        } else if(key.equals(GENERAL_INTERNAL_STAGING)) {
+            updatePrefText();
         } else if(key.equals(DEV_DEVICE_NAME) && !p.getBoolean(DEV_OVERRIDE_MANIFEST, false)) {
             SharedPreferences.Editor e = p.edit();
             e.remove(DEV_MANIFEST_URL);
@@ -23,6 +23,8 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Html;
 import android.text.Spanned;
 import android.text.method.LinkMovementMethod;
@@ -37,7 +39,8 @@ import java.util.Set;
 
 import eu.chainfire.libsuperuser.Shell;
 
-public class StatusAsyncTask extends AsyncTask <Void, String, StatusAsyncTask.Result> {
+public class StatusAsyncTask extends AsyncTask <Void, String, StatusAsyncTask.Result>
+        implements RomRepository.RomRepositoryListener {
 
     public static final int RES_OK                 = 0x00;
     public static final int RES_NO_SU              = 0x01;
@@ -63,6 +66,8 @@ public class StatusAsyncTask extends AsyncTask <Void, String, StatusAsyncTask.Re
     }
 
     public static void destroy() {
+        if(instance != null)
+            RomRepository.instance().removeListener(instance);
         instance = null;
     }
 
@@ -70,6 +75,7 @@ public class StatusAsyncTask extends AsyncTask <Void, String, StatusAsyncTask.Re
         super();
         m_layout = new WeakReference<View>(null);
         m_res = null;
+        RomRepository.instance().addListener(this);
     }
 
     public void setListener(StatusAsyncTaskListener listener) {
@@ -131,19 +137,14 @@ public class StatusAsyncTask extends AsyncTask <Void, String, StatusAsyncTask.Re
 
         publishProgress(Utils.getString(R.string.prog_looking_for_multirom));
 
-        MultiROM m = new MultiROM();
-        if(!m.findMultiROMDir()) {
-            res.code |= RES_NO_MULTIROM;
-        } else {
-            if(!m.findVersion())
-                res.code |= RES_FAIL_MROM_VER;
-            else {
-                publishProgress(Utils.getString(R.string.prog_getting_roms));
-
-                m.findRoms();
-                res.multirom = m;
-            }
-        }
+        RomRepository.Snapshot roms = RomRepository.instance().refresh(
+                new RomRepository.ScanProgressListener() {
+                    @Override
+                    public void onGettingRoms() {
+                        publishProgress(Utils.getString(R.string.prog_getting_roms));
+                    }
+                });
+        setRoms(res, roms);
 
         publishProgress(Utils.getString(R.string.prog_check_recovery));
 
@@ -189,6 +190,54 @@ public class StatusAsyncTask extends AsyncTask <Void, String, StatusAsyncTask.Re
         return res;
     }
 
+    private static void setRoms(Result res, RomRepository.Snapshot roms) {
+        res.code &= ~(RES_NO_MULTIROM | RES_FAIL_MROM_VER);
+        res.multirom = null;
+        res.romsTimestamp = roms.timestamp;
+        switch(roms.code) {
+            case RomRepository.RES_NO_MULTIROM:
+                res.code |= RES_NO_MULTIROM;
+                break;
+            case RomRepository.RES_FAIL_MROM_VER:
+                res.code |= RES_FAIL_MROM_VER;
+                break;
+            default:
+                res.multirom = roms.multirom;
+                break;
+        }
+    }
+
+    /**
+     * Scans started elsewhere, e.g. from the widget, change what MultiROM
+     * looks like too. The result is updated on the UI thread.
+     */
+    @Override
+    public void onRomsRefreshed(final RomRepository.Snapshot snapshot) {
+        s_uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(m_res == null) {
+                    // still running, onPostExecute() checks this one
+                    m_latestRoms = snapshot;
+                    return;
+                }
+                applyRoms(snapshot);
+            }
+        });
+    }
+
+    private void applyRoms(RomRepository.Snapshot snapshot) {
+        // early failures (no root, unsupported device) have nothing to update
+        if(m_res.device == null || snapshot.timestamp <= m_res.romsTimestamp)
+            return;
+
+        setRoms(m_res, snapshot);
+        if(m_res.manifest != null)
+            m_res.manifest.compareVersions(m_res.multirom, m_res.recovery, m_res.kernel);
+        UpdateChecker.setVersions(m_res.device, m_res.multirom, m_res.recovery);
+        applyResult();
+    }
+
     protected void onProgressUpdate(String... progress) {
         m_progressText = progress[0];
 
@@ -201,6 +250,10 @@ public class StatusAsyncTask extends AsyncTask <Void, String, StatusAsyncTask.Re
 
     protected void onPostExecute(Result res) {
         m_res = res;
+        if(m_latestRoms != null) {
+            applyRoms(m_latestRoms);
+            m_latestRoms = null;
+        }
         applyResult();
         if(m_listener != null && m_res != null)
             m_listener.onStatusTaskFinished(res);
@@ -266,7 +319,7 @@ public class StatusAsyncTask extends AsyncTask <Void, String, StatusAsyncTask.Re
 
         String recovery_date = null;
         if (m_res.recovery != null) {
-            recovery_date = Recovery.DISPLAY_FMT.format(m_res.recovery.getVersion());
+            recovery_date = m_res.recovery.getVersion().toDisplayString();
         }
 
         String kexec_text = t.getResources().getString(
@@ -357,10 +410,13 @@ public class StatusAsyncTask extends AsyncTask <Void, String, StatusAsyncTask.Re
         public String statusText = null;
         public Device device = null;
         public String manifest_reset_status = null;
+        public long romsTimestamp = 0;
     }
 
     private WeakReference<View> m_layout;
     private StatusAsyncTaskListener m_listener;
     private Result m_res;
     private String m_progressText;
+    private RomRepository.Snapshot m_latestRoms;
+    private static final Handler s_uiHandler = new Handler(Looper.getMainLooper());
 }
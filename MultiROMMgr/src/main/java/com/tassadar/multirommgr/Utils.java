@@ -38,9 +38,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
@@ -50,10 +50,13 @@ import eu.chainfire.libsuperuser.Shell;
 
 public class Utils {
     private static final String TAG = "MultiROMMgr::Utils";
-    private static final int BUSYBOX_VER = 4;
 
     private static String m_downloadDir = null;
+    private static final String STAGING_DIR = "downloads";
     public static String getDownloadDir() {
+        if(isInternalStaging())
+            return getStagingDir();
+
         if(m_downloadDir != null)
             return m_downloadDir;
 
@@ -66,6 +69,24 @@ public class Utils {
         return m_downloadDir;
     }
 
+    /**
+     * Downloads can be kept in app's private dir on /data instead of the
+     * sdcard, which is much faster than going through the sdcard's FUSE
+     * layer, and root can use the same paths as the app.
+     */
+    public static boolean isInternalStaging() {
+        return MgrApp.getPreferences().getBoolean(SettingsFragment.GENERAL_INTERNAL_STAGING, false);
+    }
+
+    public static String getStagingDir() {
+        return new File(MgrApp.getAppContext().getFilesDir(), STAGING_DIR).getAbsolutePath();
+    }
+
+    /** @return true if root sees f under the same path as the app does */
+    public static boolean isRootVisible(File f) {
+        return f.getAbsolutePath().startsWith(getStagingDir() + "/");
+    }
+
     public static String getDefaultDownloadDir() {
         return Environment.getExternalStorageDirectory().getAbsolutePath() + "/Download";
     }
@@ -78,45 +99,6 @@ public class Utils {
         p.commit();
     }
 
-    public static String extractAsset(String name) {
-        Context ctx = MgrApp.getAppContext();
-
-        String path = ctx.getCacheDir() + "/" + name;
-        File f = new File(path);
-        if(f.exists()) {
-            if(!name.equals("busybox"))
-                return path;
-
-            SharedPreferences pref = MgrApp.getPreferences();
-            if(pref.getInt("busybox_ver", 0) == BUSYBOX_VER)
-                return path;
-        }
-
-        try {
-            InputStream in = ctx.getAssets().open(name);
-            FileOutputStream out = new FileOutputStream(path);
-
-            byte[] buff = new byte[4096];
-            for(int len; (len = in.read(buff)) != -1; )
-                out.write(buff, 0, len);
-
-            out.close();
-            in.close();
-
-            f.setExecutable(true, false);
-            f.setReadable(true, false);
-
-            if(name.equals("busybox")) {
-                SharedPreferences pref = MgrApp.getPreferences();
-                pref.edit().putInt("busybox_ver", BUSYBOX_VER).commit();
-            }
-            return path;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
     public static File getCacheOpenRecoveryScript() {
         return new File(MgrApp.getAppContext().getCacheDir(), "openrecoveryscript");
     }
@@ -124,7 +106,7 @@ public class Utils {
     public static void deployOpenRecoveryScript(String cacheDev) {
         File script = getCacheOpenRecoveryScript();
 
-        String bb = Utils.extractAsset("busybox");
+        String bb = AssetExtractor.getPath(AssetExtractor.BUSYBOX);
         if(bb == null) {
             Log.e(TAG, "Failed to extract busybox!");
             return;
@@ -210,6 +192,17 @@ public class Utils {
         public boolean isCanceled();
     }
 
+    /**
+     * Listener which also gets to see the HTTP connection, e.g. to send
+     * conditional headers or to remember validators of the response.
+     */
+    public interface DownloadResponseListener extends DownloadProgressListener {
+        /** Called before the connection is opened, request headers can be added here */
+        public void onConnecting(HttpURLConnection conn);
+        /** Called once the response headers are in. Return false to abort the download */
+        public boolean onResponse(HttpURLConnection conn) throws IOException;
+    }
+
     public static boolean downloadFile(String strUrl, OutputStream output, DownloadProgressListener listener) throws IOException {
         return downloadFile(strUrl, output, listener, false, 0);
     }
@@ -219,39 +212,58 @@ public class Utils {
     }
 
     public static boolean downloadFile(String strUrl, OutputStream output, DownloadProgressListener listener, boolean useCache, long offset) throws IOException {
-        InputStream in = null;
-        HttpURLConnection conn = null;
-        try {
-            URL url = new URL(strUrl);
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setInstanceFollowRedirects(true);
-            conn.setUseCaches(useCache);
-            conn.addRequestProperty("Accept-Encoding", "gzip,deflate");
-
-            if(useCache) {
-                conn.addRequestProperty("Cache-Control", "max-age=0");
-            }
+        return downloadFile(strUrl, output, listener, useCache, offset, null);
+    }
+
+    /**
+     * @param digest if not null, every byte written to output is also fed to it,
+     *               so the file doesn't have to be read again to verify it.
+     */
+    public static boolean downloadFile(final String strUrl, OutputStream output, final DownloadProgressListener listener,
+                                       final boolean useCache, long offset, MessageDigest digest) throws IOException {
+        if(offset < 0)
+            offset = 0;
+
+        final long rangeStart = offset;
+        HttpClient.Response r = HttpClient.instance().get(strUrl, new HttpClient.ConnectionSetup() {
+            @Override
+            public void onConnecting(HttpURLConnection conn) throws IOException {
+                conn.setUseCaches(useCache);
+                conn.addRequestProperty("Accept-Encoding", "gzip,deflate");
+
+                if(useCache) {
+                    conn.addRequestProperty("Cache-Control", "max-age=0");
+                }
 
-            if(offset > 0) {
-                conn.addRequestProperty("Range", "Bytes=" + offset + "-");
-            } else {
-                offset = 0;
-            }
+                if(rangeStart > 0) {
+                    conn.addRequestProperty("Range", "Bytes=" + rangeStart + "-");
+                }
 
-            conn.connect();
+                if(listener instanceof DownloadResponseListener)
+                    ((DownloadResponseListener)listener).onConnecting(conn);
+            }
+        });
 
-            int res = conn.getResponseCode();
+        InputStream in = null;
+        boolean complete = false;
+        try {
+            HttpURLConnection conn = r.getConnection();
+            int res = r.getCode();
             if(res != HttpURLConnection.HTTP_OK && res != HttpURLConnection.HTTP_PARTIAL) {
                 Log.e(TAG, "downloadFile failed for url \"" + strUrl + "\" with code " + res);
                 return false;
             }
 
-            long total = conn.getContentLength() + offset;
+            if(listener instanceof DownloadResponseListener &&
+                    !((DownloadResponseListener)listener).onResponse(conn))
+                return false;
+
+            long total = getContentLength(conn) + offset;
             long downloaded = offset;
 
             byte[] buff = new byte[8192];
 
-            in = new BufferedInputStream(conn.getInputStream());
+            in = new BufferedInputStream(r.getInputStream());
 
             if("gzip".equals(conn.getContentEncoding()) || (useCache && gzipEncodingSafeguard(strUrl, buff, in))) {
                 in = new GZIPInputStream(in);
@@ -259,7 +271,10 @@ public class Utils {
 
             for(int len; (len = in.read(buff)) != -1;) {
                 downloaded += len;
+                r.addBytes(len);
                 output.write(buff, 0, len);
+                if(digest != null)
+                    digest.update(buff, 0, len);
 
                 if(listener != null) {
                     listener.onProgressChanged(downloaded, total);
@@ -267,10 +282,11 @@ public class Utils {
                         return false;
                 }
             }
+            complete = true;
         } finally {
             Utils.close(in);
-            if(conn != null)
-                conn.disconnect();
+            // keeps the connection alive for the next request if it was read to the end
+            r.close(complete);
         }
         return true;
     }
@@ -348,33 +364,61 @@ public class Utils {
     }
 
     public static String calculateChecksum(File file, String checksumType) {
-        FileInputStream in = null;
+        return ChecksumEngine.calculate(file, checksumType);
+    }
+
+    public static String calculateChecksumStream(InputStream in, String checksumType) throws IOException {
+        MessageDigest digest = createDigest(checksumType);
+        if(digest == null)
+            return null;
+
+        updateDigest(digest, in, Long.MAX_VALUE);
+        return Utils.bytesToHex(digest.digest());
+    }
+
+    /**
+     * HttpURLConnection.getContentLength() is an int, which gives -1 for
+     * files of 2 GiB and more.
+     * @return value of Content-Length, -1 if it is missing or invalid
+     */
+    public static long getContentLength(HttpURLConnection conn) {
+        String len = conn.getHeaderField("Content-Length");
+        if(len == null)
+            return -1;
         try {
-            in = new FileInputStream(file);
-            return calculateChecksumStream(in, checksumType);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            close(in);
+            return Long.parseLong(len.trim());
+        } catch(NumberFormatException e) {
+            return -1;
         }
-        return null;
     }
 
-    public static String calculateChecksumStream(InputStream in, String checksumType) throws IOException {
-        int read;
-        byte[] buff = new byte[8192];
-        MessageDigest digest = null;
+    public static MessageDigest createDigest(String checksumType) {
         try {
-            digest = MessageDigest.getInstance(checksumType);
+            return MessageDigest.getInstance(checksumType);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
             return null;
         }
+    }
 
-        while((read = in.read(buff)) > 0)
-            digest.update(buff, 0, read);
+    /**
+     * Brings digest to the state it would have after hashing the first
+     * length bytes of file. Used when resuming a download, so that only
+     * the already downloaded part is read again.
+     */
+    public static boolean updateDigest(MessageDigest digest, File file, long length) {
+        return ChecksumEngine.update(new MessageDigest[] { digest }, file, length) == length;
+    }
 
-        return Utils.bytesToHex(digest.digest());
+    private static long updateDigest(MessageDigest digest, InputStream in, long length) throws IOException {
+        int read;
+        long total = 0;
+        byte[] buff = new byte[8192];
+        while(total < length && (read = in.read(buff, 0, (int)Math.min(buff.length, length - total))) > 0) {
+            digest.update(buff, 0, read);
+            total += read;
+        }
+        return total;
     }
 
     private static final char[] HEX = {'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
@@ -443,14 +487,15 @@ public class Utils {
     }
 
     public static String readFile(String path) {
-        FileInputStream in = null;
+        InputStreamReader in = null;
         try {
-            in = new FileInputStream(path);
+            // decoding per chunk of bytes would break characters split between chunks
+            in = new InputStreamReader(new FileInputStream(path), "UTF-8");
             StringBuilder builder = new StringBuilder();
-            byte buff[] = new byte[4096];
+            char buff[] = new char[4096];
             int read;
             while((read = in.read(buff)) > 0)
-                builder.append(new String(buff, 0, read, "UTF-8"));
+                builder.append(buff, 0, read);
             return builder.toString();
         } catch (FileNotFoundException e) {
             e.printStackTrace();
@@ -475,50 +520,17 @@ public class Utils {
         }
     }
 
-    private static String lastGoodSuSdcardPath = null;
+    /** @return path under which root sees f, which is on the sdcard or in staging dir */
     public static File findSdcardFileSu(File f) {
-        final String path = f.getAbsolutePath();
-        final String ext = Environment.getExternalStorageDirectory().getAbsolutePath();
-
-        String tail = path;
-        if(tail.startsWith(ext))
-            tail = tail.substring(ext.length()+1);
-        else if(tail.startsWith("/sdcard/"))
-            tail = tail.substring(("/sdcard/").length());
-
-        StringBuilder b = new StringBuilder();
-
-        if(lastGoodSuSdcardPath != null)
-            appendFindSdcardFileSuCmd(b, lastGoodSuSdcardPath, tail);
-
-        appendFindSdcardFileSuCmd(b, path, "");
-
-        final String[] paths = {
-                "/sdcard/", "/storage/emulated/0/", "/storage/emulated/legacy/",
-                "/data/media/0/", "/data/media/"
-        };
-
-        for(String p : paths)
-            appendFindSdcardFileSuCmd(b, p, tail);
-
-        b.append("se exit 0; fi;");
-
-        List<String> out = Shell.SU.run(b.toString());
-        if(out == null || out.isEmpty())
-            return null;
-
-        int path_idx = out.get(0).indexOf(tail);
-        if(path_idx != -1)
-            lastGoodSuSdcardPath = out.get(0).substring(0, path_idx);
-        return new File(out.get(0));
+        if(isRootVisible(f))
+            return f;
+        return SdcardPathResolver.instance().resolve(f);
     }
 
-    private static void appendFindSdcardFileSuCmd(StringBuilder b, String path, String path2) {
-        b.append("if [ -f \"")
-                .append(path).append(path2)
-                .append("\" ]; then echo \"")
-                .append(path).append(path2)
-                .append("\"; exit 0; el");
+    /** @return id which changes with every boot, or null if the kernel doesn't have it */
+    public static String getBootId() {
+        String id = readFile("/proc/sys/kernel/random/boot_id");
+        return id != null ? id.trim() : null;
     }
 
     public static final String CTX_APP = "u:r:untrusted_app:s0";
@@ -0,0 +1,182 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Remembers digests of big files we have already hashed, together with
+ * what identifies the file's content cheaply - size, mtime and, where the
+ * platform can tell us, inode. As long as those don't change, the digest
+ * is returned without reading the file again, so retrying an install
+ * doesn't rehash gigabytes of images which were fine the last time.
+ */
+public class VerifiedFileCache {
+    private static final String CACHE_NAME = "verified_files";
+
+    private static class Entry {
+        public String type;
+        public String path;
+        public long size;
+        public long mtime;
+        public long inode;
+        public String digest;
+
+        public boolean matches(long size, long mtime, long inode) {
+            // inode is 0 when it could not be read, only size and mtime count then
+            return this.size == size && this.mtime == mtime &&
+                    (this.inode == 0 || inode == 0 || this.inode == inode);
+        }
+    }
+
+    private static VerifiedFileCache s_instance = null;
+    public static synchronized VerifiedFileCache instance() {
+        if(s_instance == null)
+            s_instance = new VerifiedFileCache(new File(MgrApp.getAppContext().getFilesDir(), CACHE_NAME));
+        return s_instance;
+    }
+
+    private VerifiedFileCache(File file) {
+        m_file = file;
+        load();
+    }
+
+    /** @return digest of f if it was hashed before and did not change since, otherwise null */
+    public synchronized String getCached(File f, String type) {
+        Entry e = m_entries.get(key(f, type));
+        if(e == null)
+            return null;
+
+        if(!f.exists() || !e.matches(f.length(), f.lastModified(), getInode(f))) {
+            m_entries.remove(key(f, type));
+            save();
+            return null;
+        }
+        return e.digest;
+    }
+
+    /** @return digest of f, from the cache or freshly computed. Null on failure. */
+    public String getChecksum(File f, String type) {
+        String digest = getCached(f, type);
+        if(digest != null)
+            return digest;
+
+        digest = ChecksumEngine.calculate(f, type);
+        if(digest != null)
+            put(f, type, digest);
+        return digest;
+    }
+
+    /** Records digest of f, e.g. one computed while it was downloaded */
+    public synchronized void put(File f, String type, String digest) {
+        if(digest == null || !f.exists())
+            return;
+
+        Entry e = new Entry();
+        e.type = type;
+        e.path = f.getAbsolutePath();
+        e.size = f.length();
+        e.mtime = f.lastModified();
+        e.inode = getInode(f);
+        e.digest = digest;
+        m_entries.put(key(f, type), e);
+        save();
+    }
+
+    private static String key(File f, String type) {
+        return type + ":" + f.getAbsolutePath();
+    }
+
+    private static long getInode(File f) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return 0;
+        try {
+            return Os.stat(f.getAbsolutePath()).st_ino;
+        } catch(ErrnoException e) {
+            return 0;
+        }
+    }
+
+    private void load() {
+        if(!m_file.exists())
+            return;
+
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(m_file));
+            for(String line; (line = r.readLine()) != null; ) {
+                String[] tokens = line.split("\t");
+                if(tokens.length != 6)
+                    continue;
+
+                Entry e = new Entry();
+                e.type = tokens[0];
+                e.path = tokens[1];
+                e.size = Long.parseLong(tokens[2]);
+                e.mtime = Long.parseLong(tokens[3]);
+                e.inode = Long.parseLong(tokens[4]);
+                e.digest = tokens[5];
+                m_entries.put(e.type + ":" + e.path, e);
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        } catch(NumberFormatException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.close(r);
+        }
+    }
+
+    private void save() {
+        File tmp = new File(m_file.getPath() + ".tmp");
+        FileWriter w = null;
+        try {
+            StringBuilder b = new StringBuilder();
+            for(Entry e : m_entries.values()) {
+                // files deleted meanwhile are dropped here
+                if(!new File(e.path).exists())
+                    continue;
+                b.append(e.type).append('\t').append(e.path).append('\t')
+                        .append(e.size).append('\t').append(e.mtime).append('\t')
+                        .append(e.inode).append('\t').append(e.digest).append('\n');
+            }
+
+            w = new FileWriter(tmp);
+            w.write(b.toString());
+            w.close();
+            w = null;
+            tmp.renameTo(m_file);
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.close(w);
+        }
+    }
+
+    private File m_file;
+    private HashMap<String, Entry> m_entries = new HashMap<String, Entry>();
+}
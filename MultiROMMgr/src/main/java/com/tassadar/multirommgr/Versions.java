@@ -0,0 +1,220 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parsed MultiROM and recovery versions. The values are immutable and
+ * parsing keeps no shared state besides a concurrent cache of already
+ * parsed strings, so everything here can be used from any thread.
+ */
+public final class Versions {
+    private static final String TAG = "MROMMgr::Versions";
+
+    private static final int CACHE_MAX = 64;
+
+    private static final ConcurrentHashMap<String, MultiRomVersion> s_multirom =
+            new ConcurrentHashMap<String, MultiRomVersion>();
+    private static final ConcurrentHashMap<String, RecoveryVersion> s_recovery =
+            new ConcurrentHashMap<String, RecoveryVersion>();
+
+    private Versions() { }
+
+    /** MultiROM version, a number optionally followed by a letter, e.g. "33" or "19g" */
+    public static final class MultiRomVersion implements Comparable<MultiRomVersion> {
+        private MultiRomVersion(String text, int number, char patch) {
+            m_text = text;
+            this.number = number;
+            this.patch = patch;
+        }
+
+        @Override
+        public int compareTo(MultiRomVersion o) {
+            if(number != o.number)
+                return number < o.number ? -1 : 1;
+            return patch < o.patch ? -1 : (patch == o.patch ? 0 : 1);
+        }
+
+        public boolean isNewerThan(MultiRomVersion o) {
+            return compareTo(o) > 0;
+        }
+
+        public boolean isAtLeast(MultiRomVersion o) {
+            return compareTo(o) >= 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MultiRomVersion && compareTo((MultiRomVersion)o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return number * 31 + patch;
+        }
+
+        @Override
+        public String toString() {
+            return m_text;
+        }
+
+        public final int number;
+        /** the letter after the number, 0 if there is none */
+        public final char patch;
+        private final String m_text;
+    }
+
+    /**
+     * Recovery version, "mromYYYYMMDD-NN" or just "mromYYYYMMDD". The NN
+     * part is a build number of that day, 0 when it is missing.
+     */
+    public static final class RecoveryVersion implements Comparable<RecoveryVersion> {
+        private RecoveryVersion(int year, int month, int day, int build, boolean hasBuild) {
+            this.year = year;
+            this.month = month;
+            this.day = day;
+            this.build = build;
+            this.hasBuild = hasBuild;
+        }
+
+        @Override
+        public int compareTo(RecoveryVersion o) {
+            final long a = key(), b = o.key();
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+
+        private long key() {
+            return ((year * 100L + month) * 100L + day) * 1000L + build;
+        }
+
+        public boolean isNewerThan(RecoveryVersion o) {
+            return compareTo(o) > 0;
+        }
+
+        public boolean isAtLeast(RecoveryVersion o) {
+            return compareTo(o) >= 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RecoveryVersion && compareTo((RecoveryVersion)o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)key();
+        }
+
+        /** Same format the version was parsed from */
+        @Override
+        public String toString() {
+            if(hasBuild)
+                return String.format(Locale.US, "mrom%04d%02d%02d-%02d", year, month, day, build);
+            return String.format(Locale.US, "mrom%04d%02d%02d", year, month, day);
+        }
+
+        /** e.g. "2015-03-21 (2)", what the UI shows */
+        public String toDisplayString() {
+            return String.format(Locale.US, "%04d-%02d-%02d (%d)", year, month, day, build);
+        }
+
+        public final int year;
+        public final int month;
+        public final int day;
+        public final int build;
+        public final boolean hasBuild;
+    }
+
+    /** Version of no recovery at all, older than any real one */
+    public static final RecoveryVersion RECOVERY_NONE = new RecoveryVersion(1970, 1, 1, 0, true);
+
+    /** @return parsed version, or null if ver is null, empty or malformed */
+    public static MultiRomVersion parseMultiRom(String ver) {
+        if(ver == null)
+            return null;
+
+        MultiRomVersion res = s_multirom.get(ver);
+        if(res != null)
+            return res;
+
+        String num = ver.trim();
+        if(num.isEmpty())
+            return null;
+
+        char patch = 0;
+        final char last = num.charAt(num.length()-1);
+        if(!Utils.isNumeric(last)) {
+            patch = last;
+            num = num.substring(0, num.length()-1);
+        }
+
+        try {
+            res = new MultiRomVersion(ver, num.isEmpty() ? 0 : Integer.parseInt(num), patch);
+        } catch(NumberFormatException e) {
+            Log.e(TAG, "Invalid MultiROM version \"" + ver + "\"");
+            return null;
+        }
+
+        if(s_multirom.size() < CACHE_MAX)
+            s_multirom.put(ver, res);
+        return res;
+    }
+
+    /** @return parsed version, or null if ver is null or malformed */
+    public static RecoveryVersion parseRecovery(String ver) {
+        if(ver == null)
+            return null;
+
+        RecoveryVersion res = s_recovery.get(ver);
+        if(res != null)
+            return res;
+
+        final String v = ver.trim();
+        if(!v.startsWith("mrom") || v.length() < 12) {
+            Log.e(TAG, "Invalid recovery version \"" + ver + "\"");
+            return null;
+        }
+
+        try {
+            final int year = Integer.parseInt(v.substring(4, 8));
+            final int month = Integer.parseInt(v.substring(8, 10));
+            final int day = Integer.parseInt(v.substring(10, 12));
+
+            int build = 0;
+            boolean hasBuild = false;
+            if(v.length() > 12) {
+                if(v.charAt(12) != '-')
+                    throw new NumberFormatException();
+                build = Integer.parseInt(v.substring(13));
+                hasBuild = true;
+            }
+            res = new RecoveryVersion(year, month, day, build, hasBuild);
+        } catch(NumberFormatException e) {
+            Log.e(TAG, "Invalid recovery version \"" + ver + "\"");
+            return null;
+        }
+
+        if(s_recovery.size() < CACHE_MAX)
+            s_recovery.put(ver, res);
+        return res;
+    }
+}
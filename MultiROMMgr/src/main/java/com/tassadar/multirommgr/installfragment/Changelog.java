@@ -26,6 +26,11 @@ public class Changelog {
         url = o.getString("url");
     }
 
+    public Changelog(String name, String url) {
+        this.name = name;
+        this.url = url;
+    }
+
     public String name;
     public String url;
 }
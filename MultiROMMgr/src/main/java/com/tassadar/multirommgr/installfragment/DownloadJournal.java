@@ -0,0 +1,356 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr.installfragment;
+
+import android.util.Log;
+
+import com.tassadar.multirommgr.Utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar file kept next to every download. It remembers where the file
+ * came from (URL, ETag, Last-Modified), its size and a CRC32 of every
+ * CHUNK_SIZE bytes written so far. That lets us:
+ *  - check only the last chunk of a partial file before resuming it,
+ *    instead of blindly appending to whatever is on disk
+ *  - accept a finished file without reading it again, as long as its
+ *    size and mtime are the same as when the download finished
+ */
+public class DownloadJournal {
+    private static final String TAG = "MROMMgr::DownloadJournal";
+
+    public static final String SUFFIX = ".journal";
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    // how many finished chunks before the journal is flushed to disk
+    private static final int SAVE_INTERVAL = 16;
+
+    public static File getJournalFile(File dest) {
+        return new File(dest.getAbsolutePath() + SUFFIX);
+    }
+
+    public static void delete(File dest) {
+        getJournalFile(dest).delete();
+    }
+
+    /** @return journal for dest, or null if there isn't one or it is unreadable */
+    public static DownloadJournal load(File dest) {
+        File f = getJournalFile(dest);
+        if(!f.exists() || !dest.exists())
+            return null;
+
+        DownloadJournal j = new DownloadJournal(dest);
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(f));
+            for(String line; (line = r.readLine()) != null; ) {
+                int idx = line.indexOf('=');
+                if(idx == -1)
+                    continue;
+
+                final String key = line.substring(0, idx);
+                final String val = line.substring(idx+1);
+                if(key.equals("url"))
+                    j.m_url = val;
+                else if(key.equals("etag"))
+                    j.m_etag = val.isEmpty() ? null : val;
+                else if(key.equals("last_modified"))
+                    j.m_lastModified = val.isEmpty() ? null : val;
+                else if(key.equals("size"))
+                    j.m_size = Long.parseLong(val);
+                else if(key.equals("complete"))
+                    j.m_complete = val.equals("1");
+                else if(key.equals("mtime"))
+                    j.m_mtime = Long.parseLong(val);
+                else if(key.equals("checksum_type"))
+                    j.m_checksumType = val.isEmpty() ? null : val;
+                else if(key.equals("checksum"))
+                    j.m_checksum = val.isEmpty() ? null : val;
+                else if(key.equals("chunks") && !val.isEmpty()) {
+                    for(String c : val.split(","))
+                        j.m_chunks.add(Long.parseLong(c, 16));
+                }
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+            return null;
+        } catch(NumberFormatException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            Utils.close(r);
+        }
+
+        if(j.m_url == null)
+            return null;
+        return j;
+    }
+
+    public DownloadJournal(File dest) {
+        m_dest = dest;
+    }
+
+    /** Starts a fresh journal, throwing away whatever was recorded before */
+    public void reset(String url, String etag, String lastModified, long size) {
+        m_url = url;
+        m_etag = etag;
+        m_lastModified = lastModified;
+        m_size = size;
+        m_complete = false;
+        m_mtime = 0;
+        m_checksumType = null;
+        m_checksum = null;
+        m_chunks.clear();
+    }
+
+    /**
+     * True if the file on disk is the finished download of url, and it was
+     * not touched since. checksumType must match the one the journal has,
+     * null means the file has no checksum (e.g. signatures).
+     */
+    public boolean isCompleteFor(String url, long size, String checksumType) {
+        if(!m_complete || !url.equals(m_url) || (size > 0 && size != m_size) ||
+                m_dest.length() != m_size || m_dest.lastModified() != m_mtime)
+            return false;
+
+        if(checksumType == null)
+            return m_checksumType == null;
+        return checksumType.equals(m_checksumType) && m_checksum != null;
+    }
+
+    /**
+     * Finds how much of the partial file can be kept. Only the last
+     * recorded chunk is read back and checked.
+     * @return offset to resume from, 0 if the file has to be downloaded again
+     */
+    public long getResumeOffset(String url) {
+        if(m_complete || !url.equals(m_url) || m_chunks.isEmpty())
+            return 0;
+
+        final long offset = getRecordedLength();
+        if(m_dest.length() < offset)
+            return 0;
+
+        final long tailStart = offset - CHUNK_SIZE;
+        Long crc = calculateChunkCrc(tailStart, CHUNK_SIZE);
+        if(crc == null || !crc.equals(m_chunks.get(m_chunks.size()-1))) {
+            Log.w(TAG, "Last chunk of " + m_dest.getName() + " is corrupted, starting over");
+            return 0;
+        }
+
+        // anything past the last full chunk wasn't recorded, drop it
+        return truncate(offset) ? offset : 0;
+    }
+
+    /**
+     * Starts journaling a partial file which has no journal yet, e.g. one
+     * left over from an older version. The file is cut down to whole chunks
+     * and those are read once to get their CRCs.
+     * @return offset to resume from
+     */
+    public long adopt(String url, long length) {
+        reset(url, null, null, 0);
+
+        final long count = Math.min(length, m_dest.length()) / CHUNK_SIZE;
+        for(long i = 0; i < count; ++i) {
+            Long crc = calculateChunkCrc(i * CHUNK_SIZE, CHUNK_SIZE);
+            if(crc == null)
+                break;
+            m_chunks.add(crc);
+        }
+
+        final long offset = getRecordedLength();
+        if(!truncate(offset)) {
+            m_chunks.clear();
+            return 0;
+        }
+        save();
+        return offset;
+    }
+
+    private boolean truncate(long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(m_dest, "rw");
+            raf.setLength(length);
+            return true;
+        } catch(IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            Utils.close(raf);
+        }
+    }
+
+    /** Number of bytes covered by recorded chunk checksums */
+    public long getRecordedLength() {
+        return (long)m_chunks.size() * CHUNK_SIZE;
+    }
+
+    private Long calculateChunkCrc(long start, int len) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(m_dest);
+            if(in.skip(start) != start)
+                return null;
+
+            CRC32 crc = new CRC32();
+            byte[] buff = new byte[8192];
+            int read;
+            while(len > 0 && (read = in.read(buff, 0, Math.min(buff.length, len))) > 0) {
+                crc.update(buff, 0, read);
+                len -= read;
+            }
+            return len == 0 ? crc.getValue() : null;
+        } catch(IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            Utils.close(in);
+        }
+    }
+
+    public void setComplete(String checksumType, String checksum) {
+        m_complete = true;
+        m_size = m_dest.length();
+        m_mtime = m_dest.lastModified();
+        m_checksumType = checksumType;
+        m_checksum = checksum;
+        save();
+    }
+
+    /**
+     * Wraps the output stream the download is written into, so that every
+     * finished chunk gets its CRC recorded. Must be created with the stream
+     * positioned at {@link #getResumeOffset}.
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new ChunkOutputStream(out);
+    }
+
+    private class ChunkOutputStream extends FilterOutputStream {
+        public ChunkOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            m_crc.update(b);
+            if(++m_chunkPos == CHUNK_SIZE)
+                finishChunk();
+        }
+
+        @Override
+        public void write(byte[] buff, int off, int len) throws IOException {
+            out.write(buff, off, len);
+            while(len > 0) {
+                int n = Math.min(len, CHUNK_SIZE - m_chunkPos);
+                m_crc.update(buff, off, n);
+                m_chunkPos += n;
+                off += n;
+                len -= n;
+                if(m_chunkPos == CHUNK_SIZE)
+                    finishChunk();
+            }
+        }
+
+        private void finishChunk() throws IOException {
+            // the journal must never claim data which wasn't written yet
+            out.flush();
+            m_chunks.add(m_crc.getValue());
+            m_crc.reset();
+            m_chunkPos = 0;
+            if(m_chunks.size() % SAVE_INTERVAL == 0)
+                save();
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            save();
+        }
+
+        private CRC32 m_crc = new CRC32();
+        private int m_chunkPos = 0;
+    }
+
+    public void save() {
+        if(m_url == null)
+            return;
+
+        File f = getJournalFile(m_dest);
+        File tmp = new File(f.getAbsolutePath() + ".tmp");
+
+        StringBuilder b = new StringBuilder();
+        b.append("url=").append(m_url).append('\n')
+         .append("etag=").append(m_etag != null ? m_etag : "").append('\n')
+         .append("last_modified=").append(m_lastModified != null ? m_lastModified : "").append('\n')
+         .append("size=").append(m_size).append('\n')
+         .append("complete=").append(m_complete ? "1" : "0").append('\n')
+         .append("mtime=").append(m_mtime).append('\n')
+         .append("checksum_type=").append(m_checksumType != null ? m_checksumType : "").append('\n')
+         .append("checksum=").append(m_checksum != null ? m_checksum : "").append('\n')
+         .append("chunks=");
+        for(int i = 0; i < m_chunks.size(); ++i) {
+            if(i != 0)
+                b.append(',');
+            b.append(Long.toHexString(m_chunks.get(i)));
+        }
+        b.append('\n');
+
+        FileWriter w = null;
+        try {
+            w = new FileWriter(tmp);
+            w.write(b.toString());
+            w.close();
+            w = null;
+            tmp.renameTo(f);
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.close(w);
+        }
+    }
+
+    public String getUrl() { return m_url; }
+    public String getEtag() { return m_etag; }
+    public String getLastModified() { return m_lastModified; }
+    public String getChecksum() { return m_checksum; }
+
+    private File m_dest;
+    private String m_url;
+    private String m_etag;
+    private String m_lastModified;
+    private long m_size;
+    private boolean m_complete;
+    private long m_mtime;
+    private String m_checksumType;
+    private String m_checksum;
+    private ArrayList<Long> m_chunks = new ArrayList<Long>();
+}
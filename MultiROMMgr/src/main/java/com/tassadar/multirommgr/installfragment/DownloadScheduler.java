@@ -0,0 +1,422 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr.installfragment;
+
+import android.util.Log;
+
+import com.tassadar.multirommgr.ChecksumEngine;
+import com.tassadar.multirommgr.Utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs several downloads at once on a small worker pool. Smallest files
+ * (signatures, keyrings) go first, so that a broken URL fails the install
+ * before we spend minutes on the big images. All listener callbacks are
+ * made from the thread which called {@link #run}, never from the workers.
+ */
+public class DownloadScheduler {
+    private static final String TAG = "MROMMgr::DownloadScheduler";
+
+    public static final int MAX_PARALLEL = 3;
+    // Files bigger than this are fetched over several connections
+    public static final long SEGMENTED_MIN_SIZE = 32 * 1024 * 1024;
+    private static final long POLL_INTERVAL_MS = 200;
+
+    public interface SchedulerListener {
+        void onJobFinished(Job job);
+        void onProgressChanged(long downloaded, long total);
+        boolean isCanceled();
+    }
+
+    /**
+     * Destination other than a local file. Such downloads are not resumed
+     * and the checksum is computed on the fly.
+     */
+    public interface Sink {
+        OutputStream open() throws IOException;
+        /**
+         * Called after the whole file was written and the stream closed.
+         * @return false if the file must be thrown away, abort() was
+         *         already done in that case.
+         */
+        boolean commit(String checksum);
+        void abort();
+    }
+
+    /** Smaller files first, so they are done early and can be checked */
+    private static final Comparator<Job> BY_SIZE = new Comparator<Job>() {
+        @Override
+        public int compare(Job a, Job b) {
+            return a.size < b.size ? -1 : (a.size == b.size ? 0 : 1);
+        }
+    };
+
+    public static class Job {
+        public Job(String url, File dest, Sink sink, long offset, long size,
+                   String checksumType, String extraChecksumType) {
+            this.url = url;
+            this.dest = dest;
+            this.sink = sink;
+            this.offset = offset;
+            this.size = size;
+            this.checksumType = checksumType;
+            this.extraChecksumType = extraChecksumType;
+        }
+
+        public boolean isSuccessful() {
+            return m_success;
+        }
+
+        /** Checksum of the whole file, or null if checksumType was null */
+        public String getChecksum() {
+            return m_checksum;
+        }
+
+        /** Checksum of the given type, null if the job didn't compute it */
+        public String getChecksum(String type) {
+            if(type.equals(checksumType))
+                return m_checksum;
+            if(type.equals(extraChecksumType))
+                return m_extraChecksum;
+            return null;
+        }
+
+        public final String url;
+        /** where the file ends up, for sink jobs possibly not writable by us */
+        public final File dest;
+        public final Sink sink;
+        public final long offset;
+        public final long size;
+        public final String checksumType;
+        /** computed in the same pass, but not recorded in the journal */
+        public final String extraChecksumType;
+
+        private volatile long m_downloaded;
+        private volatile long m_total;
+        private volatile boolean m_success;
+        private volatile String m_checksum;
+        private volatile String m_extraChecksum;
+    }
+
+    public Job add(String url, File dest, long offset, long size) {
+        return add(url, dest, offset, size, null);
+    }
+
+    /**
+     * @param checksumType MessageDigest algorithm to compute while the file is
+     *                     being downloaded, see {@link Job#getChecksum()}
+     */
+    public Job add(String url, File dest, long offset, long size, String checksumType) {
+        return add(url, dest, offset, size, checksumType, null);
+    }
+
+    /**
+     * @param extraChecksumType second checksum to compute in the same pass,
+     *                          see {@link Job#getChecksum(String)}
+     */
+    public Job add(String url, File dest, long offset, long size, String checksumType,
+                   String extraChecksumType) {
+        Job j = new Job(url, dest, null, offset, size, checksumType, extraChecksumType);
+        m_jobs.add(j);
+        return j;
+    }
+
+    /**
+     * Downloads url into sink instead of a local file.
+     * @param dest final path of the file, used for logging
+     */
+    public Job add(String url, Sink sink, File dest, long size, String checksumType) {
+        Job j = new Job(url, dest, sink, 0, size, checksumType, null);
+        m_jobs.add(j);
+        return j;
+    }
+
+    public int getJobCount() {
+        return m_jobs.size();
+    }
+
+    /**
+     * Downloads all added jobs, blocks until they are done.
+     * @return true if all of them succeeded
+     */
+    public boolean run(SchedulerListener listener) {
+        if(m_jobs.isEmpty())
+            return true;
+
+        Collections.sort(m_jobs, BY_SIZE);
+
+        m_abort = false;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL, m_jobs.size()));
+        for(Job j : m_jobs)
+            pool.execute(new JobRunnable(j));
+        pool.shutdown();
+
+        int remaining = m_jobs.size();
+        boolean success = true;
+        try {
+            while(remaining > 0) {
+                Job done = m_finished.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if(done != null) {
+                    --remaining;
+                    if(!done.m_success) {
+                        success = false;
+                        m_abort = true;
+                    }
+                    listener.onJobFinished(done);
+                }
+
+                if(listener.isCanceled()) {
+                    success = false;
+                    m_abort = true;
+                }
+
+                publishProgress(listener);
+            }
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+            m_abort = true;
+            pool.shutdownNow();
+            success = false;
+        }
+        return success;
+    }
+
+    private void publishProgress(SchedulerListener listener) {
+        long downloaded = 0, total = 0;
+        for(Job j : m_jobs) {
+            downloaded += j.m_downloaded;
+            total += Math.max(j.m_total, j.size);
+        }
+        listener.onProgressChanged(downloaded, total);
+    }
+
+    private class JobRunnable implements Runnable, Utils.DownloadResponseListener {
+        public JobRunnable(Job job) {
+            m_job = job;
+        }
+
+        @Override
+        public void run() {
+            if(!m_abort) {
+                try {
+                    if(m_job.sink != null)
+                        m_job.m_success = downloadToSink();
+                    else if(m_job.size >= SEGMENTED_MIN_SIZE || SegmentedDownload.hasPartialState(m_job.dest))
+                        m_job.m_success = downloadSegmented();
+                    else
+                        m_job.m_success = downloadStream();
+                } catch(IOException e) {
+                    Log.e(TAG, "Failed to download " + m_job.url);
+                    e.printStackTrace();
+                }
+            }
+            m_finished.add(m_job);
+        }
+
+        private boolean downloadStream() throws IOException {
+            long offset = m_job.offset;
+            if(offset != 0) {
+                m_journal = DownloadJournal.load(m_job.dest);
+                if(m_journal == null || m_journal.getRecordedLength() != offset) {
+                    m_journal = new DownloadJournal(m_job.dest);
+                    offset = m_journal.adopt(m_job.url, offset);
+                }
+            } else {
+                DownloadJournal.delete(m_job.dest);
+                m_journal = new DownloadJournal(m_job.dest);
+            }
+
+            if(!downloadStream(offset)) {
+                if(!m_restart)
+                    return false;
+
+                Log.i(TAG, m_job.url + " has changed on the server, downloading it again");
+                DownloadJournal.delete(m_job.dest);
+                m_journal = new DownloadJournal(m_job.dest);
+                if(!downloadStream(0))
+                    return false;
+            }
+
+            m_journal.setComplete(m_job.checksumType, m_job.m_checksum);
+            return true;
+        }
+
+        private boolean downloadStream(long offset) throws IOException {
+            m_offset = offset;
+            m_restart = false;
+
+            MessageDigest[] digests = createDigests();
+            if(digests == null)
+                return false;
+            if(offset != 0 && digests.length != 0 &&
+                    ChecksumEngine.update(digests, m_job.dest, offset) != offset)
+                return false;
+
+            OutputStream out = null;
+            try {
+                out = wrapExtra(m_journal.wrap(new FileOutputStream(m_job.dest, (offset != 0))));
+                if(!Utils.downloadFile(m_job.url, out, this, false, offset, m_digest))
+                    return false;
+            } finally {
+                Utils.close(out);
+            }
+
+            finishDigests();
+            return true;
+        }
+
+        /**
+         * Creates digests of the job, m_digest and m_extraDigest are set to
+         * them or to null.
+         * @return all of them, possibly empty. Null on failure.
+         */
+        private MessageDigest[] createDigests() {
+            ArrayList<MessageDigest> res = new ArrayList<MessageDigest>(2);
+            m_digest = m_extraDigest = null;
+            if(m_job.checksumType != null) {
+                m_digest = Utils.createDigest(m_job.checksumType);
+                if(m_digest == null)
+                    return null;
+                res.add(m_digest);
+            }
+            if(m_job.extraChecksumType != null) {
+                m_extraDigest = Utils.createDigest(m_job.extraChecksumType);
+                if(m_extraDigest == null)
+                    return null;
+                res.add(m_extraDigest);
+            }
+            return res.toArray(new MessageDigest[res.size()]);
+        }
+
+        /** The extra digest gets everything written to out */
+        private OutputStream wrapExtra(OutputStream out) {
+            return m_extraDigest != null ? new DigestOutputStream(out, m_extraDigest) : out;
+        }
+
+        private void finishDigests() {
+            if(m_digest != null)
+                m_job.m_checksum = Utils.bytesToHex(m_digest.digest());
+            if(m_extraDigest != null)
+                m_job.m_extraChecksum = Utils.bytesToHex(m_extraDigest.digest());
+        }
+
+        private boolean downloadToSink() throws IOException {
+            if(createDigests() == null)
+                return false;
+
+            OutputStream out = null;
+            boolean res = false;
+            try {
+                out = wrapExtra(m_job.sink.open());
+                res = Utils.downloadFile(m_job.url, out, this, false, 0, m_digest);
+            } finally {
+                Utils.close(out);
+                if(!res)
+                    m_job.sink.abort();
+            }
+
+            if(!res)
+                return false;
+            finishDigests();
+            return m_job.sink.commit(m_job.m_checksum);
+        }
+
+        private boolean downloadSegmented() throws IOException {
+            DownloadJournal.delete(m_job.dest);
+
+            MessageDigest[] digests = createDigests();
+            if(digests == null)
+                return false;
+
+            SegmentedDownload d = new SegmentedDownload(m_job.url, m_job.dest,
+                    m_job.offset, SegmentedDownload.DEFAULT_SEGMENTS);
+            if(!d.download(this, digests))
+                return false;
+
+            finishDigests();
+
+            m_journal = new DownloadJournal(m_job.dest);
+            m_journal.reset(m_job.url, null, null, m_job.dest.length());
+            m_journal.setComplete(m_job.checksumType, m_job.m_checksum);
+            return true;
+        }
+
+        @Override
+        public void onConnecting(HttpURLConnection conn) {
+            // the server sends the whole file instead of the range if it has changed
+            if(m_offset != 0 && m_journal.getEtag() != null)
+                conn.addRequestProperty("If-Range", m_journal.getEtag());
+            else if(m_offset != 0 && m_journal.getLastModified() != null)
+                conn.addRequestProperty("If-Range", m_journal.getLastModified());
+        }
+
+        @Override
+        public boolean onResponse(HttpURLConnection conn) throws IOException {
+            final String etag = conn.getHeaderField("ETag");
+            if(m_offset != 0) {
+                if(conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL ||
+                        (etag != null && m_journal.getEtag() != null && !etag.equals(m_journal.getEtag()))) {
+                    m_restart = true;
+                    return false;
+                }
+                return true;
+            }
+
+            m_journal.reset(m_job.url, etag, conn.getHeaderField("Last-Modified"),
+                    Utils.getContentLength(conn));
+            m_journal.save();
+            return true;
+        }
+
+        @Override
+        public void onProgressChanged(long downloaded, long total) {
+            m_job.m_downloaded = downloaded;
+            m_job.m_total = total;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return m_abort;
+        }
+
+        private Job m_job;
+        private MessageDigest m_digest;
+        private MessageDigest m_extraDigest;
+        private DownloadJournal m_journal;
+        private long m_offset;
+        private boolean m_restart;
+    }
+
+    private ArrayList<Job> m_jobs = new ArrayList<Job>();
+    private LinkedBlockingQueue<Job> m_finished = new LinkedBlockingQueue<Job>();
+    private volatile boolean m_abort;
+}
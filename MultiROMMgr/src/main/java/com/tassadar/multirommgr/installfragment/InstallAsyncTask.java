@@ -27,6 +27,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
 
 public abstract class InstallAsyncTask extends AsyncTask<Void, Void, Void> implements Utils.DownloadProgressListener {
 
@@ -45,6 +46,10 @@ public abstract class InstallAsyncTask extends AsyncTask<Void, Void, Void> imple
     }
 
     protected boolean downloadFile(String url, File dest, long offset) {
+        return downloadFile(url, dest, offset, null);
+    }
+
+    protected boolean downloadFile(String url, File dest, long offset, MessageDigest digest) {
         m_downFilename = Utils.trim(dest.getName(), 40);
         m_listener.onInstallLog(Utils.getString(R.string.downloading_file, m_downFilename));
 
@@ -54,7 +59,7 @@ public abstract class InstallAsyncTask extends AsyncTask<Void, Void, Void> imple
         FileOutputStream out = null;
         try {
             out = new FileOutputStream(dest, (offset != 0));
-            if(Utils.downloadFile(url, out, this, false, offset)) {
+            if(Utils.downloadFile(url, out, this, false, offset, digest)) {
                 m_listener.onInstallLog(Utils.getString(R.string.success));
                 return true;
             }
@@ -74,6 +79,43 @@ public abstract class InstallAsyncTask extends AsyncTask<Void, Void, Void> imple
         return false;
     }
 
+    protected boolean downloadFiles(DownloadScheduler scheduler) {
+        if(scheduler.getJobCount() == 0)
+            return true;
+
+        m_downFilename = Utils.getString(R.string.download_files_count, scheduler.getJobCount());
+        m_lastUpdate = 0;
+        onProgressChanged(0, 0);
+
+        return scheduler.run(new DownloadScheduler.SchedulerListener() {
+            @Override
+            public void onJobFinished(DownloadScheduler.Job job) {
+                m_listener.onInstallLog(Utils.getString(R.string.downloading_file,
+                        Utils.trim(job.dest.getName(), 40)));
+                m_listener.onInstallLog(Utils.getString(
+                        job.isSuccessful() ? R.string.success : R.string.failed));
+                if(job.isSuccessful())
+                    onJobDownloaded(job);
+            }
+
+            @Override
+            public void onProgressChanged(long downloaded, long total) {
+                InstallAsyncTask.this.onProgressChanged(downloaded, total);
+            }
+
+            @Override
+            public boolean isCanceled() {
+                return m_canceled;
+            }
+        });
+    }
+
+    /**
+     * Called on the task's thread while the rest of the jobs are still
+     * downloading, e.g. to start checking the ones which are done.
+     */
+    protected void onJobDownloaded(DownloadScheduler.Job job) { }
+
     @Override
     public void onProgressChanged(long downloaded, long total) {
         long cur = System.currentTimeMillis();
@@ -35,13 +35,12 @@ import com.fima.cardsui.objects.Card;
 import com.tassadar.multirommgr.MainActivity;
 import com.tassadar.multirommgr.Manifest;
 import com.tassadar.multirommgr.R;
-import com.tassadar.multirommgr.Recovery;
+import com.tassadar.multirommgr.Versions;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -90,8 +89,9 @@ public class InstallCard extends Card implements CompoundButton.OnCheckedChangeL
 
         b = (CheckBox)m_view.findViewById(R.id.install_recovery);
         if(m_manifest.getRecoveryFile() != null) {
-            final Date rec_date = m_manifest.getRecoveryVersion();
-            final String recovery_ver = Recovery.DISPLAY_FMT.format(rec_date);
+            final Versions.RecoveryVersion rec_ver = m_manifest.getRecoveryVersion();
+            final String recovery_ver = rec_ver != null ? rec_ver.toDisplayString() :
+                    m_manifest.getRecoveryFile().version;
             b.setText(res.getString(R.string.install_recovery, recovery_ver));
             b.setChecked(m_manifest.hasRecoveryUpdate());
             b.setOnCheckedChangeListener(this);
@@ -238,7 +238,7 @@ public class InstallCard extends Card implements CompoundButton.OnCheckedChangeL
         int res = 0;
         Iterator<Map.Entry<String, Manifest.InstallationFile>> itr = m_manifest.getKernels().entrySet().iterator();
         for(int i = 0; itr.hasNext(); ++i) {
-            JSONObject extra = itr.next().getValue().extra;
+            JSONObject extra = itr.next().getValue().getExtra();
             if(extra == null)
                 continue;
             try {
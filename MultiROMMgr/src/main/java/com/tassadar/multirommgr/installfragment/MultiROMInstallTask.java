@@ -19,6 +19,7 @@ package com.tassadar.multirommgr.installfragment;
 
 import android.util.Log;
 
+import com.tassadar.multirommgr.AssetExtractor;
 import com.tassadar.multirommgr.Device;
 import com.tassadar.multirommgr.Manifest;
 import com.tassadar.multirommgr.MgrApp;
@@ -67,10 +68,8 @@ public class MultiROMInstallTask extends MultiROMTask {
         m_listener.onProgressUpdate(0, 0, true, Utils.getString(R.string.preparing_downloads, ""));
         m_listener.onInstallLog(Utils.getString(R.string.preparing_downloads, "<br>"));
 
-        for(int i = 0; i < files.size(); ++i) {
-            if(!downloadInstallationFile(files.get(i), destDir))
-                return null;
-        }
+        if(!downloadInstallationFiles(files, destDir))
+            return null;
 
         m_listener.onProgressUpdate(0, 0, true, Utils.getString(R.string.installing_files));
         m_listener.enableCancel(false);
@@ -88,7 +87,7 @@ public class MultiROMInstallTask extends MultiROMTask {
 
         for(int i = 0; i < files.size(); ++i) {
             Manifest.InstallationFile f = files.get(i);
-            m_listener.onInstallLog(Utils.getString(R.string.installing_file, f.destFile.getName()));
+            m_listener.onInstallLog(Utils.getString(R.string.installing_file, getDestFile(f).getName()));
             if(f.type.equals("recovery")) {
                 if(!flashRecovery(f, m_dev)) {
                     unmountTmpCache(cache);
@@ -134,14 +133,19 @@ public class MultiROMInstallTask extends MultiROMTask {
     }
 
     private boolean flashRecovery(Manifest.InstallationFile f, Device dev) {
-        String p = Utils.extractAsset("busybox");
+        String p = AssetExtractor.getPath(AssetExtractor.BUSYBOX);
         if(p == null) {
             Log.e(TAG, "Failed to extract busybox!");
             return false;
         }
 
-        File tmprecovery = new File(MgrApp.getAppContext().getCacheDir(), f.destFile.getName());
-        Utils.copyFile(f.destFile, tmprecovery);
+        final File destFile = getDestFile(f);
+        final boolean needsCopy = !Utils.isRootVisible(destFile);
+        File tmprecovery = destFile;
+        if(needsCopy) {
+            tmprecovery = new File(MgrApp.getAppContext().getCacheDir(), destFile.getName());
+            Utils.copyFile(destFile, tmprecovery);
+        }
 
         String cmd = String.format("$(\"%s\" dd if=\"%s\" of=\"%s\" bs=8192 conv=fsync);" +
                 "if [ \"$?\" = \"0\" ]; then echo success; fi;",
@@ -151,11 +155,13 @@ public class MultiROMInstallTask extends MultiROMTask {
             Utils.chcon(Utils.CHCON_BLOCK_ACCESS, p);
 
         List<String> out = Shell.SU.run(cmd);
+        Recovery.invalidateCache();
 
         if(Utils.isSELinuxEnforcing())
             Utils.chcon(Utils.CHCON_ORIGINAL, p);
 
-        tmprecovery.delete();
+        if(needsCopy)
+            tmprecovery.delete();
 
         if(out == null || out.isEmpty() || !out.get(out.size()-1).equals("success")) {
             m_listener.onInstallLog(Utils.getString(R.string.failed));
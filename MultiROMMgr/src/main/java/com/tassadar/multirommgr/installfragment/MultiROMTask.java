@@ -19,18 +19,24 @@ package com.tassadar.multirommgr.installfragment;
 
 import android.util.Log;
 
+import com.tassadar.multirommgr.AssetExtractor;
 import com.tassadar.multirommgr.Device;
 import com.tassadar.multirommgr.Gpg;
 import com.tassadar.multirommgr.Manifest;
 import com.tassadar.multirommgr.MgrApp;
 import com.tassadar.multirommgr.R;
 import com.tassadar.multirommgr.Utils;
+import com.tassadar.multirommgr.VerifiedFileCache;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import eu.chainfire.libsuperuser.Shell;
 
@@ -45,7 +51,7 @@ public abstract class MultiROMTask extends InstallAsyncTask {
 
         if(m_manifest.checkDataGpg()) {
             try {
-                m_gpg = new Gpg(Gpg.RING_MULTIROM);
+                m_gpg = Gpg.get(Gpg.RING_MULTIROM);
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
             } catch (IOException e) {
@@ -60,6 +66,52 @@ public abstract class MultiROMTask extends InstallAsyncTask {
     public void setCanceled(boolean canceled) { m_canceled = canceled; }
 
     protected boolean downloadInstallationFile(Manifest.InstallationFile f, File destDir) {
+        ArrayList<Manifest.InstallationFile> files = new ArrayList<Manifest.InstallationFile>();
+        files.add(f);
+        return downloadInstallationFiles(files, destDir);
+    }
+
+    protected boolean downloadInstallationFiles(List<Manifest.InstallationFile> files, File destDir) {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        LinkedHashMap<Manifest.InstallationFile, DownloadScheduler.Job> pending =
+                new LinkedHashMap<Manifest.InstallationFile, DownloadScheduler.Job>();
+
+        PackageStore.instance().trim();
+        m_gpgPending.clear();
+        m_downloaded.clear();
+        m_verifications.clear();
+
+        for(int i = 0; i < files.size(); ++i) {
+            if(!scheduleInstallationFile(files.get(i), destDir, scheduler, pending))
+                return false;
+        }
+
+        if(m_manifest.checkDataGpg() && m_gpg == null && !pending.isEmpty()) {
+            m_listener.onInstallLog(Utils.getString(R.string.gpg_failed));
+            m_listener.onInstallComplete(false);
+            return false;
+        }
+
+        if(!downloadFiles(scheduler)) {
+            if(!m_canceled)
+                m_listener.onInstallComplete(false);
+            return false;
+        }
+
+        for(Map.Entry<Manifest.InstallationFile, DownloadScheduler.Job> e : pending.entrySet()) {
+            Manifest.InstallationFile f = e.getKey();
+            if(!verifyInstallationFile(f, e.getValue()))
+                return false;
+
+            String key = PackageStore.key("MD5", f.md5);
+            if(key != null && f.md5.equals(e.getValue().getChecksum()))
+                PackageStore.instance().add(key);
+        }
+        return true;
+    }
+
+    private boolean scheduleInstallationFile(Manifest.InstallationFile f, File destDir,
+            DownloadScheduler scheduler, Map<Manifest.InstallationFile, DownloadScheduler.Job> pending) {
         String filename = Utils.getFilenameFromUrl(f.url);
         if(filename == null || filename.isEmpty()) {
             m_listener.onInstallLog(Utils.getString(R.string.invalid_url, f.url));
@@ -67,14 +119,32 @@ public abstract class MultiROMTask extends InstallAsyncTask {
             return false;
         }
 
+        // Files with a checksum live in the package store, the rest goes
+        // straight into the download dir
+        PackageStore store = PackageStore.instance();
+        String key = PackageStore.key("MD5", f.md5);
+        if(key != null) {
+            if(store.contains(key))
+                Log.d(TAG, filename + " found in package store");
+            destDir = store.getDir(key);
+        }
+
         long startOffset = 0;
-        f.destFile = new File(destDir, filename);
-        if(f.destFile.exists()) {
-            long size = f.destFile.length();
+        File destFile = new File(destDir, filename);
+        m_destFiles.put(f, destFile);
+        DownloadJournal journal = DownloadJournal.load(destFile);
+        if(journal != null && !SegmentedDownload.hasPartialState(destFile)) {
+            if(journal.isCompleteFor(f.url, f.size, "MD5") && f.md5.equals(journal.getChecksum())) {
+                m_listener.onInstallLog(Utils.getString(R.string.skipping_file, filename));
+                return true;
+            }
+            startOffset = journal.getResumeOffset(f.url);
+        } else if(destFile.exists() && !SegmentedDownload.hasPartialState(destFile)) {
+            long size = destFile.length();
             if(size < f.size) {
                 startOffset = size;
             } else {
-                String md5 = Utils.calculateMD5(f.destFile);
+                String md5 = VerifiedFileCache.instance().getChecksum(destFile, "MD5");
                 if(f.md5.equals(md5)) {
                     m_listener.onInstallLog(Utils.getString(R.string.skipping_file, filename));
                     return true;
@@ -82,29 +152,61 @@ public abstract class MultiROMTask extends InstallAsyncTask {
             }
         }
 
-        if(!downloadFile(f.url, f.destFile, startOffset)) {
-            if(!m_canceled)
-                m_listener.onInstallComplete(false);
-            return false;
+        // With GPG on, the signature is what gets checked. The MD5 is still
+        // computed, the journal needs it to skip the file next time, and
+        // the SHA-256 from the same pass keys the signature ledger.
+        DownloadScheduler.Job job = scheduler.add(f.url, destFile, startOffset, f.size, "MD5",
+                m_manifest.checkDataGpg() ? "SHA-256" : null);
+        if(m_manifest.checkDataGpg()) {
+            scheduler.add(f.url + ".asc", getSignFile(f), 0, 0);
+            m_gpgPending.add(f);
         }
 
-        if(m_manifest.checkDataGpg()) {
-            if(m_gpg == null) {
-                m_listener.onInstallLog(Utils.getString(R.string.gpg_failed));
-                m_listener.onInstallComplete(false);
-                return false;
-            }
+        pending.put(f, job);
+        return true;
+    }
 
-            File signFile = new File(f.destFile.getAbsolutePath() + ".asc");
-            if(!downloadFile(f.url + ".asc", signFile, 0)) {
-                if(!m_canceled)
-                    m_listener.onInstallComplete(false);
-                return false;
+    /** Starts checking the signature as soon as both the file and its .asc are here */
+    @Override
+    protected void onJobDownloaded(DownloadScheduler.Job job) {
+        if(m_gpg == null)
+            return;
+
+        m_downloaded.put(job.dest, job);
+        for(int i = 0; i < m_gpgPending.size(); ++i) {
+            Manifest.InstallationFile f = m_gpgPending.get(i);
+            File destFile = getDestFile(f);
+            File signFile = getSignFile(f);
+            DownloadScheduler.Job fileJob = m_downloaded.get(destFile);
+            if(fileJob != null && m_downloaded.containsKey(signFile)) {
+                // the digest from the download spares gpg another read of the file
+                m_verifications.put(destFile, m_gpg.verifyAsync(
+                        destFile.getAbsolutePath(), signFile.getAbsolutePath(),
+                        fileJob.getChecksum("SHA-256")));
+                m_gpgPending.remove(i);
+                break;
             }
+        }
+    }
 
+    private boolean verifyInstallationFile(Manifest.InstallationFile f, DownloadScheduler.Job job) {
+        final File destFile = getDestFile(f);
+        final String filename = destFile.getName();
+        if(m_manifest.checkDataGpg()) {
+            File signFile = getSignFile(f);
             m_listener.onInstallLog(Utils.getString(R.string.checking_file, filename));
-            boolean res = m_gpg.verifyFile(f.destFile.getAbsolutePath());
+            boolean res;
+            Gpg.Verification v = m_verifications.get(destFile);
+            try {
+                res = v != null ? v.get() :
+                        m_gpg.verifyFile(destFile.getAbsolutePath(), signFile.getAbsolutePath(),
+                                job.getChecksum("SHA-256"));
+            } catch(InterruptedException e) {
+                e.printStackTrace();
+                res = false;
+            }
             signFile.delete();
+            DownloadJournal.delete(signFile);
             if(res) {
                 m_listener.onInstallLog(Utils.getString(R.string.ok));
             } else {
@@ -114,10 +216,10 @@ public abstract class MultiROMTask extends InstallAsyncTask {
             }
         } else {
             m_listener.onInstallLog(Utils.getString(R.string.checking_file, filename));
-            String md5 = Utils.calculateMD5(f.destFile);
-            if(f.md5.isEmpty() || f.md5.equals(md5))
+            if(f.md5.isEmpty() || f.md5.equals(job.getChecksum())) {
+                VerifiedFileCache.instance().put(destFile, "MD5", job.getChecksum());
                 m_listener.onInstallLog(Utils.getString(R.string.ok));
-            else {
+            } else {
                 m_listener.onInstallLog(Utils.getString(R.string.failed));
                 m_listener.onInstallComplete(false);
                 return false;
@@ -126,11 +228,26 @@ public abstract class MultiROMTask extends InstallAsyncTask {
         return true;
     }
 
-    protected boolean addScriptInstall(Manifest.InstallationFile f, File scriptFile, String cache) {
-        String bb = Utils.extractAsset("busybox");
+    /** @return where f was downloaded to by this task */
+    protected File getDestFile(Manifest.InstallationFile f) {
+        return m_destFiles.get(f);
+    }
+
+    private File getSignFile(Manifest.InstallationFile f) {
+        return new File(getDestFile(f).getAbsolutePath() + ".asc");
+    }
 
-        File tmpfile = new File(MgrApp.getAppContext().getCacheDir(), f.destFile.getName());
-        Utils.copyFile(f.destFile, tmpfile);
+    protected boolean addScriptInstall(Manifest.InstallationFile f, File scriptFile, String cache) {
+        String bb = AssetExtractor.getPath(AssetExtractor.BUSYBOX);
+
+        // root can't always read the sdcard, so the file goes through our cache dir
+        final File destFile = getDestFile(f);
+        final boolean needsCopy = !Utils.isRootVisible(destFile);
+        File tmpfile = destFile;
+        if(needsCopy) {
+            tmpfile = new File(MgrApp.getAppContext().getCacheDir(), destFile.getName());
+            Utils.copyFile(destFile, tmpfile);
+        }
 
         if(Utils.isSELinuxEnforcing())
             Utils.chcon(Utils.CHCON_EXECUTABLE, bb);
@@ -141,7 +258,8 @@ public abstract class MultiROMTask extends InstallAsyncTask {
         if(Utils.isSELinuxEnforcing())
             Utils.chcon(Utils.CHCON_ORIGINAL, bb);
 
-        tmpfile.delete();
+        if(needsCopy)
+            tmpfile.delete();
 
         if(res == null || res.size() != 1 || !res.get(0).equals("success")) {
             m_listener.onInstallLog("Failed to copy file to cache!");
@@ -151,9 +269,9 @@ public abstract class MultiROMTask extends InstallAsyncTask {
         FileOutputStream out = null;
         try {
             out = new FileOutputStream(scriptFile, true);
-            String line = String.format("install /cache/recovery/%s\n", f.destFile.getName());
+            String line = String.format("install /cache/recovery/%s\n", destFile.getName());
             out.write(line.getBytes());
-            line = String.format("cmd rm \"/cache/recovery/%s\"\n", f.destFile.getName());
+            line = String.format("cmd rm \"/cache/recovery/%s\"\n", destFile.getName());
             out.write(line.getBytes());
         } catch (Exception e) {
             e.printStackTrace();
@@ -165,7 +283,7 @@ public abstract class MultiROMTask extends InstallAsyncTask {
     }
 
     protected String mountTmpCache(String cacheDev) {
-        String bb = Utils.extractAsset("busybox");
+        String bb = AssetExtractor.getPath(AssetExtractor.BUSYBOX);
         if(bb == null) {
             Log.e(TAG, "Failed to extract busybox!");
             return null;
@@ -206,4 +324,9 @@ public abstract class MultiROMTask extends InstallAsyncTask {
     protected Manifest m_manifest;
     protected Device m_dev;
     protected Gpg m_gpg;
+    private ArrayList<Manifest.InstallationFile> m_gpgPending = new ArrayList<Manifest.InstallationFile>();
+    private HashMap<File, DownloadScheduler.Job> m_downloaded = new HashMap<File, DownloadScheduler.Job>();
+    private HashMap<File, Gpg.Verification> m_verifications = new HashMap<File, Gpg.Verification>();
+    // the manifest models are shared and immutable, destinations are per install
+    private HashMap<Manifest.InstallationFile, File> m_destFiles = new HashMap<Manifest.InstallationFile, File>();
 }
@@ -23,15 +23,14 @@ import com.tassadar.multirommgr.Device;
 import com.tassadar.multirommgr.Manifest;
 import com.tassadar.multirommgr.MgrApp;
 import com.tassadar.multirommgr.R;
-import com.tassadar.multirommgr.Recovery;
 import com.tassadar.multirommgr.UpdateChecker;
 import com.tassadar.multirommgr.Utils;
+import com.tassadar.multirommgr.Versions;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
 import eu.chainfire.libsuperuser.Shell;
@@ -63,7 +62,7 @@ public class MultiROMUninstallTask extends MultiROMTask {
         m_listener.enableCancel(false);
 
         m_listener.onInstallLog(Utils.getString(R.string.installing_file,
-                uninstaller.destFile.getName()));
+                getDestFile(uninstaller).getName()));
 
         File script = Utils.getCacheOpenRecoveryScript();
         if(script.exists())
@@ -84,7 +83,7 @@ public class MultiROMUninstallTask extends MultiROMTask {
         unmountTmpCache(cache);
 
         if(UpdateChecker.isEnabled()) {
-            UpdateChecker.lazyUpdateVersions(m_dev, "0", Recovery.VER_FMT.format(new Date(0)));
+            UpdateChecker.lazyUpdateVersions(m_dev, "0", Versions.RECOVERY_NONE.toString());
         }
 
         m_listener.requestRecovery(false);
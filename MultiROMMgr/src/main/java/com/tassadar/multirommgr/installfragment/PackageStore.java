@@ -0,0 +1,252 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr.installfragment;
+
+import android.util.Log;
+
+import com.tassadar.multirommgr.Utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Downloaded packages, stored by their checksum instead of by file name.
+ * Every package gets its own directory named after its hash, which keeps
+ * the original file name (and the signature next to it), so two manifests
+ * with same-named files can't overwrite each other and the same file is
+ * never downloaded twice, e.g. by a second Ubuntu ROM from one channel.
+ *
+ * The index file keeps size and last use of every package, least recently
+ * used ones are deleted when the store grows over its budget.
+ */
+public class PackageStore {
+    private static final String TAG = "MROMMgr::PackageStore";
+
+    public static final String STORE_DIR = "MultiROMStore";
+    public static final long DEFAULT_BUDGET = 3L * 1024 * 1024 * 1024;
+    private static final String INDEX_NAME = "index";
+
+    private static class Entry {
+        public Entry(String key, long size, long lastUsed) {
+            this.key = key;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+
+        public final String key;
+        public long size;
+        public long lastUsed;
+    }
+
+    private static PackageStore s_instance = null;
+    public static synchronized PackageStore instance() {
+        File root = new File(Utils.getDownloadDir(), STORE_DIR);
+        // download dir can be changed in settings
+        if(s_instance == null || !s_instance.m_root.equals(root))
+            s_instance = new PackageStore(root, DEFAULT_BUDGET);
+        return s_instance;
+    }
+
+    /** @return store key for a checksum, or null if there is no checksum */
+    public static String key(String checksumType, String checksum) {
+        if(checksum == null || checksum.isEmpty())
+            return null;
+        return checksumType.toLowerCase().replace("-", "") + "-" + checksum.toLowerCase();
+    }
+
+    private PackageStore(File root, long budget) {
+        m_root = root;
+        m_budget = budget;
+        loadIndex();
+    }
+
+    /** Directory in which the package with this key is (or will be) stored */
+    public synchronized File getDir(String key) {
+        File dir = new File(m_root, key);
+        dir.mkdirs();
+        return dir;
+    }
+
+    /**
+     * @return true if the package is in the store. Marks it as used, the
+     *         caller still has to check the file itself.
+     */
+    public synchronized boolean contains(String key) {
+        Entry e = m_entries.get(key);
+        if(e == null)
+            return false;
+
+        if(!new File(m_root, key).isDirectory()) {
+            m_entries.remove(key);
+            saveIndex();
+            return false;
+        }
+
+        e.lastUsed = System.currentTimeMillis();
+        saveIndex();
+        return true;
+    }
+
+    /** Records a verified package whose files are in {@link #getDir} */
+    public synchronized void add(String key) {
+        long size = 0;
+        File[] files = new File(m_root, key).listFiles();
+        if(files != null) {
+            for(File f : files)
+                size += f.length();
+        }
+
+        Entry e = m_entries.get(key);
+        if(e == null) {
+            e = new Entry(key, size, System.currentTimeMillis());
+            m_entries.put(key, e);
+        } else {
+            e.size = size;
+            e.lastUsed = System.currentTimeMillis();
+        }
+        saveIndex();
+    }
+
+    public synchronized void remove(String key) {
+        m_entries.remove(key);
+        deleteDir(new File(m_root, key));
+        saveIndex();
+    }
+
+    /**
+     * Deletes least recently used packages until the store fits into its
+     * budget. Call it before resolving files of an install, not after,
+     * so that the files the install uses can't be deleted under it.
+     *
+     * Directories which aren't in the index, e.g. aborted downloads, count
+     * into the budget too, last modification being their last use.
+     */
+    public synchronized void trim() {
+        ArrayList<Entry> entries = new ArrayList<Entry>(m_entries.values());
+        File[] dirs = m_root.listFiles();
+        if(dirs != null) {
+            for(File d : dirs) {
+                if(d.isDirectory() && !m_entries.containsKey(d.getName()))
+                    entries.add(scanDir(d));
+            }
+        }
+
+        long total = 0;
+        for(Entry e : entries)
+            total += e.size;
+
+        if(total <= m_budget)
+            return;
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.lastUsed < b.lastUsed ? -1 : (a.lastUsed == b.lastUsed ? 0 : 1);
+            }
+        });
+
+        for(int i = 0; i < entries.size() && total > m_budget; ++i) {
+            Entry e = entries.get(i);
+            Log.i(TAG, "Evicting " + e.key + " (" + e.size + " bytes)");
+            m_entries.remove(e.key);
+            deleteDir(new File(m_root, e.key));
+            total -= e.size;
+        }
+        saveIndex();
+    }
+
+    private static Entry scanDir(File dir) {
+        long size = 0;
+        long lastUsed = dir.lastModified();
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                size += f.length();
+                lastUsed = Math.max(lastUsed, f.lastModified());
+            }
+        }
+        return new Entry(dir.getName(), size, lastUsed);
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+
+    private void loadIndex() {
+        File f = new File(m_root, INDEX_NAME);
+        if(!f.exists())
+            return;
+
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(f));
+            for(String line; (line = r.readLine()) != null; ) {
+                String[] tokens = line.split(" ");
+                if(tokens.length != 3)
+                    continue;
+                m_entries.put(tokens[0], new Entry(tokens[0],
+                        Long.parseLong(tokens[1]), Long.parseLong(tokens[2])));
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        } catch(NumberFormatException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.close(r);
+        }
+    }
+
+    private void saveIndex() {
+        m_root.mkdirs();
+
+        File f = new File(m_root, INDEX_NAME);
+        File tmp = new File(m_root, INDEX_NAME + ".tmp");
+        FileWriter w = null;
+        try {
+            StringBuilder b = new StringBuilder();
+            for(Entry e : m_entries.values())
+                b.append(e.key).append(' ').append(e.size).append(' ').append(e.lastUsed).append('\n');
+
+            w = new FileWriter(tmp);
+            w.write(b.toString());
+            w.close();
+            w = null;
+            tmp.renameTo(f);
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.close(w);
+        }
+    }
+
+    private File m_root;
+    private long m_budget;
+    private HashMap<String, Entry> m_entries = new HashMap<String, Entry>();
+}
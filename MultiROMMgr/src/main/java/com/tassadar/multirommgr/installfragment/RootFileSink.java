@@ -0,0 +1,135 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr.installfragment;
+
+import android.util.Log;
+
+import com.tassadar.multirommgr.Utils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import eu.chainfire.libsuperuser.Shell;
+
+/**
+ * Writes a download straight into a path only root can write to, through
+ * a "cat" running as root. The data goes into a temporary file first, which
+ * is renamed to the real name only if the download succeeded and its
+ * checksum matched, so the destination never holds a partial or corrupted
+ * file.
+ */
+public class RootFileSink implements DownloadScheduler.Sink {
+    private static final String TAG = "MROMMgr::RootFileSink";
+
+    private static final String TMP_SUFFIX = ".part";
+    private static final int BUFF_SIZE = 64 * 1024;
+    private static final int MAX_OUTPUT = 4096;
+
+    /**
+     * @param checksum expected checksum of the file, in the type the download
+     *                 job computes. Null means it is not checked.
+     */
+    public RootFileSink(String dest, String checksum) {
+        m_dest = dest;
+        m_tmp = dest + TMP_SUFFIX;
+        m_checksum = checksum;
+    }
+
+    @Override
+    public OutputStream open() throws IOException {
+        m_proc = new ProcessBuilder("su", "-c", "cat > \"" + m_tmp + "\"")
+                .redirectErrorStream(true)
+                .start();
+
+        // su and SELinux can be chatty, an unread pipe would block the writer
+        final InputStream in = m_proc.getInputStream();
+        m_drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buff = new byte[1024];
+                try {
+                    for(int len; (len = in.read(buff)) != -1; ) {
+                        if(m_output.length() < MAX_OUTPUT)
+                            m_output.append(new String(buff, 0, len));
+                    }
+                } catch(IOException e) {
+                    // the process was destroyed
+                } finally {
+                    Utils.close(in);
+                }
+            }
+        }, "RootFileSink output");
+        m_drain.start();
+
+        return new BufferedOutputStream(m_proc.getOutputStream(), BUFF_SIZE);
+    }
+
+    private String getOutput() {
+        try {
+            m_drain.join(1000);
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+        return m_output.toString().trim();
+    }
+
+    @Override
+    public boolean commit(String checksum) {
+        try {
+            if(m_proc.waitFor() != 0) {
+                Log.e(TAG, "Writing " + m_tmp + " as root failed: " + getOutput());
+                abort();
+                return false;
+            }
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+            abort();
+            return false;
+        }
+
+        if(m_checksum != null && !m_checksum.equals(checksum)) {
+            Log.e(TAG, "Checksum of " + m_dest + " does not match");
+            abort();
+            return false;
+        }
+
+        List<String> out = Shell.SU.run("mv \"%s\" \"%s\" && echo success", m_tmp, m_dest);
+        if(out == null || out.isEmpty() || !out.get(0).equals("success")) {
+            abort();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void abort() {
+        if(m_proc != null)
+            m_proc.destroy();
+        Shell.SU.run("rm -f \"%s\"", m_tmp);
+    }
+
+    private final String m_dest;
+    private final String m_tmp;
+    private final String m_checksum;
+    private Process m_proc;
+    private Thread m_drain;
+    private final StringBuffer m_output = new StringBuffer();
+}
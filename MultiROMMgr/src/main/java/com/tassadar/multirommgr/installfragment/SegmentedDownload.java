@@ -0,0 +1,450 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr.installfragment;
+
+import com.tassadar.multirommgr.ChecksumEngine;
+import com.tassadar.multirommgr.HttpClient;
+import com.tassadar.multirommgr.Utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads one file over several connections, each fetching its own byte
+ * range and writing it at its offset into a preallocated file. Progress of
+ * every segment is kept in a small sidecar file, so an interrupted download
+ * continues where each segment stopped. Servers which don't do ranges get
+ * a plain single stream instead.
+ *
+ * Nothing here is specific to the real mirrors, it can be pointed at any
+ * range-capable HTTP server.
+ */
+public class SegmentedDownload {
+    public static final int DEFAULT_SEGMENTS = 4;
+    public static final long MIN_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final String STATE_SUFFIX = ".segments";
+
+    private static final int BUFF_SIZE = 64 * 1024;
+    private static final long POLL_INTERVAL_MS = 500;
+
+    private static class Segment {
+        public Segment(long start, long end, long pos) {
+            this.start = start;
+            this.end = end;
+            this.pos = pos;
+        }
+
+        public boolean isDone() {
+            return pos > end;
+        }
+
+        public final long start;
+        public final long end; // inclusive
+        public volatile long pos;
+    }
+
+    public static File getStateFile(File dest) {
+        return new File(dest.getAbsolutePath() + STATE_SUFFIX);
+    }
+
+    /** True if dest is an unfinished segmented download which can be resumed */
+    public static boolean hasPartialState(File dest) {
+        return dest.exists() && getStateFile(dest).exists();
+    }
+
+    /**
+     * @param offset bytes at the start of dest which are already downloaded,
+     *               used only when there is no segment state to resume from.
+     */
+    public SegmentedDownload(String url, File dest, long offset, int segments) {
+        m_url = url;
+        m_dest = dest;
+        m_offset = offset;
+        m_segmentCount = Math.max(1, segments);
+    }
+
+    /**
+     * @param digests each gets the whole file in order, may be empty. The
+     *                segment at the end of the hashed prefix feeds them
+     *                directly, data of later segments is read back once the
+     *                gap before them is closed, so the file is never read
+     *                again as a whole.
+     */
+    public boolean download(Utils.DownloadProgressListener listener, MessageDigest... digests) throws IOException {
+        m_digests = digests;
+        m_hashed = 0;
+
+        long total = probeRangeSupport();
+        if(total <= 0)
+            return downloadSingleStream(listener);
+
+        if(!loadState(total))
+            createSegments(total);
+
+        RandomAccessFile raf = new RandomAccessFile(m_dest, "rw");
+        try {
+            if(raf.length() != total)
+                raf.setLength(total);
+            saveState(total);
+
+            return runSegments(raf.getChannel(), total, listener);
+        } finally {
+            Utils.close(raf);
+        }
+    }
+
+    /**
+     * Asks for the first byte of the file.
+     * @return total size if the server answers with a proper 206, -1 otherwise
+     */
+    private long probeRangeSupport() {
+        HttpClient.Response r = null;
+        boolean complete = false;
+        try {
+            r = openRange(0, 0);
+            if(r.getCode() != HttpURLConnection.HTTP_PARTIAL)
+                return -1;
+
+            // Content-Range: bytes 0-0/12345
+            String range = r.getConnection().getHeaderField("Content-Range");
+            if(range == null)
+                return -1;
+
+            // read the one byte, so that the connection can be reused
+            InputStream in = r.getInputStream();
+            while(in.read() != -1);
+            complete = true;
+
+            int idx = range.lastIndexOf('/');
+            if(idx == -1 || range.endsWith("*"))
+                return -1;
+            return Long.parseLong(range.substring(idx+1).trim());
+        } catch(IOException e) {
+            e.printStackTrace();
+            return -1;
+        } catch(NumberFormatException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            if(r != null)
+                r.close(complete);
+        }
+    }
+
+    private boolean downloadSingleStream(Utils.DownloadProgressListener listener) throws IOException {
+        getStateFile(m_dest).delete();
+
+        if(m_offset != 0 && m_digests.length != 0 &&
+                ChecksumEngine.update(m_digests, m_dest, m_offset) != m_offset)
+            return false;
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(m_dest, (m_offset != 0));
+            for(int i = 1; i < m_digests.length; ++i)
+                out = new DigestOutputStream(out, m_digests[i]);
+            return Utils.downloadFile(m_url, out, listener, false, m_offset,
+                    m_digests.length != 0 ? m_digests[0] : null);
+        } finally {
+            Utils.close(out);
+        }
+    }
+
+    private void createSegments(long total) {
+        m_segments.clear();
+
+        long start = Math.min(m_offset, total);
+        long remaining = total - start;
+        int count = (int)Math.max(1, Math.min(m_segmentCount, remaining / MIN_SEGMENT_SIZE));
+        long len = remaining / count;
+
+        for(int i = 0; i < count; ++i) {
+            long end = (i == count-1) ? total-1 : start + len - 1;
+            m_segments.add(new Segment(start, end, start));
+            start = end + 1;
+        }
+
+        // The already downloaded prefix counts as a finished segment
+        if(m_offset > 0)
+            m_segments.add(0, new Segment(0, m_offset-1, m_offset));
+    }
+
+    private boolean runSegments(FileChannel channel, long total,
+                                Utils.DownloadProgressListener listener) throws IOException {
+        m_failed = false;
+        m_abort = false;
+
+        // hash what is already here from a previous run
+        if(m_digests.length != 0)
+            hashPrefix(channel);
+
+        ArrayList<Segment> pending = new ArrayList<Segment>();
+        for(Segment s : m_segments) {
+            if(!s.isDone())
+                pending.add(s);
+        }
+
+        if(!pending.isEmpty()) {
+            ExecutorService pool = Executors.newFixedThreadPool(pending.size());
+            for(Segment s : pending)
+                pool.execute(new SegmentRunnable(s, channel));
+            pool.shutdown();
+
+            try {
+                while(!pool.awaitTermination(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    if(listener != null) {
+                        listener.onProgressChanged(getDownloaded(), total);
+                        if(listener.isCanceled())
+                            m_abort = true;
+                    }
+                    saveState(total);
+                }
+            } catch(InterruptedException e) {
+                e.printStackTrace();
+                m_abort = true;
+                pool.shutdownNow();
+            }
+        }
+
+        saveState(total);
+
+        for(Segment s : m_segments) {
+            if(!s.isDone())
+                return false;
+        }
+
+        if(m_digests.length != 0) {
+            hashPrefix(channel);
+            if(m_hashed != total)
+                return false;
+        }
+
+        channel.force(false);
+        getStateFile(m_dest).delete();
+
+        if(listener != null)
+            listener.onProgressChanged(total, total);
+        return true;
+    }
+
+    private long getDownloaded() {
+        long res = 0;
+        for(Segment s : m_segments)
+            res += s.pos - s.start;
+        return res;
+    }
+
+    /** Called by a segment after it wrote len bytes from buff at position from */
+    private void onWritten(FileChannel channel, byte[] buff, long from, int len) throws IOException {
+        synchronized(m_hashLock) {
+            if(from != m_hashed)
+                return;
+            updateDigests(buff, len);
+            m_hashed += len;
+            hashPrefix(channel);
+        }
+    }
+
+    /**
+     * Feeds the digest with everything already downloaded right after the
+     * hashed prefix, reading it back from the file.
+     */
+    private void hashPrefix(FileChannel channel) throws IOException {
+        synchronized(m_hashLock) {
+            // segments are ordered by their start
+            long end = m_hashed;
+            for(Segment s : m_segments) {
+                if(s.start <= end && s.pos > end)
+                    end = s.pos;
+            }
+
+            if(end == m_hashed)
+                return;
+
+            byte[] buff = new byte[BUFF_SIZE];
+            ByteBuffer bb = ByteBuffer.wrap(buff);
+            while(m_hashed < end) {
+                bb.clear();
+                bb.limit((int)Math.min(buff.length, end - m_hashed));
+                int len = channel.read(bb, m_hashed);
+                if(len <= 0)
+                    throw new IOException("Unexpected end of " + m_dest.getPath());
+                updateDigests(buff, len);
+                m_hashed += len;
+            }
+        }
+    }
+
+    private void updateDigests(byte[] buff, int len) {
+        for(MessageDigest d : m_digests)
+            d.update(buff, 0, len);
+    }
+
+    private HttpClient.Response openRange(final long from, final long to) throws IOException {
+        return HttpClient.instance().get(m_url, new HttpClient.ConnectionSetup() {
+            @Override
+            public void onConnecting(HttpURLConnection conn) {
+                conn.setUseCaches(false);
+                // compressed bodies would break byte offsets
+                conn.addRequestProperty("Accept-Encoding", "identity");
+                conn.addRequestProperty("Range", "bytes=" + from + "-" + to);
+            }
+        });
+    }
+
+    private class SegmentRunnable implements Runnable {
+        public SegmentRunnable(Segment s, FileChannel channel) {
+            m_segment = s;
+            m_channel = channel;
+        }
+
+        @Override
+        public void run() {
+            HttpClient.Response r = null;
+            boolean complete = false;
+            try {
+                r = openRange(m_segment.pos, m_segment.end);
+                if(r.getCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    // server stopped honouring ranges, writing this at our
+                    // offset would corrupt the file
+                    m_failed = true;
+                    return;
+                }
+
+                InputStream in = r.getInputStream();
+                byte[] buff = new byte[BUFF_SIZE];
+                ByteBuffer bb = ByteBuffer.wrap(buff);
+                long pos = m_segment.pos;
+                for(int len; pos <= m_segment.end && (len = in.read(buff)) != -1; ) {
+                    len = (int)Math.min(len, m_segment.end - pos + 1);
+                    r.addBytes(len);
+
+                    final long from = pos;
+                    bb.clear();
+                    bb.limit(len);
+                    while(bb.hasRemaining())
+                        pos += m_channel.write(bb, pos);
+
+                    m_segment.pos = pos;
+                    if(m_digests.length != 0)
+                        onWritten(m_channel, buff, from, len);
+                    if(m_abort || m_failed)
+                        return;
+                }
+                complete = m_segment.isDone() && in.read() == -1;
+            } catch(IOException e) {
+                e.printStackTrace();
+                m_failed = true;
+            } finally {
+                if(r != null)
+                    r.close(complete);
+            }
+        }
+
+        private Segment m_segment;
+        private FileChannel m_channel;
+    }
+
+    private boolean loadState(long total) {
+        File f = getStateFile(m_dest);
+        if(!f.exists() || !m_dest.exists())
+            return false;
+
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(f));
+            if(!m_url.equals(r.readLine()))
+                return false;
+            if(Long.parseLong(r.readLine()) != total)
+                return false;
+
+            ArrayList<Segment> segments = new ArrayList<Segment>();
+            for(String line; (line = r.readLine()) != null; ) {
+                String[] tokens = line.split(" ");
+                if(tokens.length != 3)
+                    return false;
+                segments.add(new Segment(Long.parseLong(tokens[0]),
+                        Long.parseLong(tokens[1]), Long.parseLong(tokens[2])));
+            }
+
+            if(segments.isEmpty())
+                return false;
+
+            m_segments = segments;
+            return true;
+        } catch(IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch(NumberFormatException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            Utils.close(r);
+        }
+    }
+
+    private void saveState(long total) {
+        File f = getStateFile(m_dest);
+        File tmp = new File(f.getAbsolutePath() + ".tmp");
+        FileWriter w = null;
+        try {
+            StringBuilder b = new StringBuilder();
+            b.append(m_url).append('\n').append(total).append('\n');
+            for(Segment s : m_segments)
+                b.append(s.start).append(' ').append(s.end).append(' ').append(s.pos).append('\n');
+
+            w = new FileWriter(tmp);
+            w.write(b.toString());
+            w.close();
+            w = null;
+
+            tmp.renameTo(f);
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.close(w);
+        }
+    }
+
+    private String m_url;
+    private File m_dest;
+    private long m_offset;
+    private int m_segmentCount;
+    private ArrayList<Segment> m_segments = new ArrayList<Segment>();
+    private volatile boolean m_abort;
+    private volatile boolean m_failed;
+    private MessageDigest[] m_digests = new MessageDigest[0];
+    private long m_hashed;
+    private final Object m_hashLock = new Object();
+}
@@ -22,6 +22,7 @@ import android.animation.AnimatorInflater;
 import android.animation.AnimatorListenerAdapter;
 import android.animation.AnimatorSet;
 import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.AnimatorRes;
 import android.text.Html;
@@ -33,6 +34,7 @@ import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.fima.cardsui.objects.Card;
 import com.tassadar.multirommgr.MainActivity;
@@ -42,7 +44,9 @@ import com.tassadar.multirommgr.R;
 import com.tassadar.multirommgr.Recovery;
 import com.tassadar.multirommgr.StatusAsyncTask;
 import com.tassadar.multirommgr.Utils;
+import com.tassadar.multirommgr.Versions;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.TreeMap;
@@ -131,7 +135,8 @@ public class UbuntuCard extends Card implements AdapterView.OnItemSelectedListen
 
         if((m_error & ERROR_RECOVERY_VER) != 0) {
             String f = t.getResources().getString(R.string.ubuntu_req_recovery);
-            String ver = Recovery.DISPLAY_FMT.format(m_manifest.getUbuntuReqRecovery());
+            Versions.RecoveryVersion req = m_manifest.getUbuntuReqRecovery();
+            String ver = req != null ? req.toDisplayString() : "";
             t.append(String.format(f, ver) + "\n");
         }
 
@@ -190,6 +195,7 @@ public class UbuntuCard extends Card implements AdapterView.OnItemSelectedListen
         v = m_view.findViewById(R.id.flavour_layout);
         v.setVisibility(res.manifest.getFlavours().size() > 1 ? View.VISIBLE : View.GONE);
 
+        m_preferred = res.manifest.getPreferredChannel();
         m_flavourAdapter = new TreeMapAdapter<String, TreeMap<String, UbuntuChannel>>
                 (m_view.getContext(), res.manifest.getFlavours(), null);
 
@@ -200,7 +206,7 @@ public class UbuntuCard extends Card implements AdapterView.OnItemSelectedListen
         onItemSelected(flavourSpinner, flavourSpinner.getSelectedView(),
                 flavourSpinner.getSelectedItemPosition(), flavourSpinner.getSelectedItemId());
 
-        String preselected = "ubuntu-touch";
+        String preselected = m_preferred != null ? m_preferred.getFlavour() : "ubuntu-touch";
         if(m_savedState != null && m_savedState.containsKey("utouch_selected_flavour"))
             preselected = m_savedState.getString("utouch_selected_flavour");
 
@@ -237,6 +243,8 @@ public class UbuntuCard extends Card implements AdapterView.OnItemSelectedListen
                 chanSpinner.setAdapter(m_channelAdapter);
 
                 String preselected = "devel";
+                if(m_preferred != null && channelMap.containsValue(m_preferred))
+                    preselected = m_preferred.getRawName();
                 if(m_savedState != null && m_savedState.containsKey("utouch_selected_chan"))
                     preselected = m_savedState.getString("utouch_selected_chan");
 
@@ -249,33 +257,104 @@ public class UbuntuCard extends Card implements AdapterView.OnItemSelectedListen
                 break;
             }
             case R.id.channel: {
-                m_versionAdapter = new ArrayAdapter<Integer>(m_view.getContext(),
-                        android.R.layout.simple_spinner_dropdown_item);
-
                 UbuntuChannel c = m_channelAdapter.getItem(position);
-                m_versionAdapter.addAll(c.getImageVersions());
-
-                Spinner s = (Spinner) m_view.findViewById(R.id.version);
-                s.setAdapter(m_versionAdapter);
-                s.setSelection(m_versionAdapter.getCount() - 1);
-
-                if (m_savedState != null) {
-                    Integer ver = m_savedState.getInt("utouch_selected_ver");
-                    if (ver != null && m_versionAdapter != null) {
-                        for (int i = 0; i < m_versionAdapter.getCount(); ++i) {
-                            if (m_versionAdapter.getItem(i).equals(ver)) {
-                                s.setSelection(i);
-                                break;
-                            }
-                        }
-                    }
-                    m_savedState = null;
+                if(c.isLoaded()) {
+                    showVersions(c);
+                } else {
+                    setChannelLoading(true);
+                    new ChannelLoadTask(this, c).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 }
                 break;
             }
         }
     }
 
+    private void setChannelLoading(boolean loading) {
+        m_view.findViewById(R.id.progress_bar).setVisibility(loading ? View.VISIBLE : View.GONE);
+        m_view.findViewById(R.id.install_btn).setEnabled(!loading);
+        if(loading) {
+            Spinner s = (Spinner) m_view.findViewById(R.id.version);
+            s.setAdapter(null);
+        }
+    }
+
+    private void onChannelLoaded(UbuntuChannel c, boolean success) {
+        if(m_view == null)
+            return;
+
+        // the user might have picked another channel in the meantime
+        Spinner s = (Spinner) m_view.findViewById(R.id.channel);
+        if(s.getSelectedItem() != c)
+            return;
+
+        if(!success) {
+            setChannelLoading(false);
+            showChannelFailed();
+            return;
+        }
+        showVersions(c);
+    }
+
+    private void showChannelFailed() {
+        Spinner s = (Spinner) m_view.findViewById(R.id.version);
+        s.setAdapter(null);
+        m_view.findViewById(R.id.install_btn).setEnabled(false);
+        Toast.makeText(m_view.getContext(), R.string.ubuntu_chan_failed, Toast.LENGTH_SHORT).show();
+    }
+
+    private void showVersions(UbuntuChannel c) {
+        // an earlier channel might still be loading
+        setChannelLoading(false);
+        if(!c.hasImages()) {
+            showChannelFailed();
+            return;
+        }
+
+        m_versionAdapter = new ArrayAdapter<Integer>(m_view.getContext(),
+                android.R.layout.simple_spinner_dropdown_item);
+        m_versionAdapter.addAll(c.getImageVersions());
+
+        Spinner s = (Spinner) m_view.findViewById(R.id.version);
+        s.setAdapter(m_versionAdapter);
+        s.setSelection(m_versionAdapter.getCount() - 1);
+
+        if (m_savedState != null) {
+            Integer ver = m_savedState.getInt("utouch_selected_ver");
+            if (ver != null && m_versionAdapter != null) {
+                for (int i = 0; i < m_versionAdapter.getCount(); ++i) {
+                    if (m_versionAdapter.getItem(i).equals(ver)) {
+                        s.setSelection(i);
+                        break;
+                    }
+                }
+            }
+            m_savedState = null;
+        }
+    }
+
+    /** Loads images of a channel the first time it is selected */
+    private static class ChannelLoadTask extends AsyncTask<Void, Void, Boolean> {
+        public ChannelLoadTask(UbuntuCard card, UbuntuChannel channel) {
+            m_card = new WeakReference<UbuntuCard>(card);
+            m_channel = channel;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... args) {
+            return m_channel.loadImages();
+        }
+
+        @Override
+        protected void onPostExecute(Boolean res) {
+            UbuntuCard card = m_card.get();
+            if(card != null)
+                card.onChannelLoaded(m_channel, res);
+        }
+
+        private WeakReference<UbuntuCard> m_card;
+        private UbuntuChannel m_channel;
+    }
+
     @Override
     public void onNothingSelected(AdapterView<?> parent) {
         int id;
@@ -304,9 +383,12 @@ public class UbuntuCard extends Card implements AdapterView.OnItemSelectedListen
 
                 s = (Spinner) m_view.findViewById(R.id.version);
                 Integer version = (Integer)s.getSelectedItem();
+                if(chan == null || version == null)
+                    break;
 
                 chan.fillInstallFilesForVer(info.installFiles, version);
                 info.channelName = chan.getRawName();
+                UbuntuManifest.setLastChannel(chan);
 
                 UbuntuManifestAsyncTask.instance().putInstallInfo(info);
 
@@ -368,6 +450,7 @@ public class UbuntuCard extends Card implements AdapterView.OnItemSelectedListen
     private TreeMapAdapter<String, TreeMap<String, UbuntuChannel>> m_flavourAdapter;
     private TreeMapAdapter<String, UbuntuChannel> m_channelAdapter;
     private ArrayAdapter<Integer> m_versionAdapter;
+    private UbuntuChannel m_preferred;
     private ArrayAdapter<String> m_destAdapter;
     private StartInstallListener m_listener;
     private Manifest m_manifest;
@@ -19,7 +19,6 @@ package com.tassadar.multirommgr.installfragment;
 
 import android.util.Log;
 
-import com.tassadar.multirommgr.Device;
 import com.tassadar.multirommgr.R;
 import com.tassadar.multirommgr.Utils;
 
@@ -31,6 +30,7 @@ import org.json.JSONTokener;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
@@ -43,6 +43,8 @@ public class UbuntuChannel {
         m_name = channelName;
         m_fullName = fullName;
         m_alias = c.optString("alias", null);
+        if(m_alias != null)
+            m_alias = m_alias.intern();
 
         JSONObject dev = c.getJSONObject("devices");
         Iterator itr = dev.keys();
@@ -50,7 +52,8 @@ public class UbuntuChannel {
             String code = (String)itr.next();
             JSONObject d = dev.getJSONObject(code);
 
-            m_devices.put(code, d.getString("index"));
+            // the same device codes are in every channel
+            m_devices.put(code.intern(), d.getString("index"));
         }
     }
 
@@ -75,16 +78,36 @@ public class UbuntuChannel {
         return b.toString();
     }
 
-    public boolean loadDeviceImages(String device_name, Device dev) throws Exception {
-        String path = m_devices.get(device_name);
-        if(path == null || path.isEmpty())
-            throw new Exception("Device " + device_name + " was not found in this channel!");
+    /** Called once the channel is known to contain the device */
+    void setDevice(String device_name, String baseUrl) {
+        m_deviceName = device_name;
+        m_baseUrl = baseUrl;
+    }
+
+    public synchronized boolean isLoaded() {
+        return m_images != null;
+    }
+
+    /**
+     * Downloads the image index of the device in this channel, only the
+     * first time it is called. Blocks if another thread is loading it
+     * already. A failed load is not remembered, the next call tries again.
+     */
+    public synchronized boolean loadImages() {
+        if(m_images != null)
+            return true;
+
+        String path = m_devices.get(m_deviceName);
+        if(path == null || path.isEmpty()) {
+            Log.e(TAG, "Device " + m_deviceName + " was not found in this channel!");
+            return false;
+        }
 
         Log.d(TAG, "Loading index " + path);
 
         ByteArrayOutputStream out = new ByteArrayOutputStream(32768);
         try {
-            if(!Utils.downloadFile(dev.getUbuntuBaseUrl() + path, out, null, true) || out.size() == 0)
+            if(!Utils.downloadFile(m_baseUrl + path, out, null, true) || out.size() == 0)
                 return false;
         } catch(IOException e) {
             e.printStackTrace();
@@ -97,24 +120,29 @@ public class UbuntuChannel {
             }
         }
 
-        m_images = new TreeMap<Integer, UbuntuImage>();
-
-        Object rawObject = new JSONTokener(out.toString()).nextValue();
-        if(!(rawObject instanceof JSONObject)){
-            Log.e(TAG, "Malformed manifest format!");
-            return false;
-        }
+        try {
+            Object rawObject = new JSONTokener(out.toString()).nextValue();
+            if(!(rawObject instanceof JSONObject)){
+                Log.e(TAG, "Malformed manifest format!");
+                return false;
+            }
 
-        JSONArray images = ((JSONObject)rawObject).getJSONArray("images");
-        for(int i = 0; i < images.length(); ++i) {
-            JSONObject img = images.getJSONObject(i);
+            TreeMap<Integer, UbuntuImage> res = new TreeMap<Integer, UbuntuImage>();
+            JSONArray images = ((JSONObject)rawObject).getJSONArray("images");
+            for(int i = 0; i < images.length(); ++i) {
+                JSONObject img = images.getJSONObject(i);
 
-            // We only need full images because we do only clean install
-            if(!img.getString("type").equals("full"))
-                continue;
+                // We only need full images because we do only clean install
+                if(!img.getString("type").equals("full"))
+                    continue;
 
-            UbuntuImage uimg = new UbuntuImage(img);
-            m_images.put(uimg.version, uimg);
+                UbuntuImage uimg = new UbuntuImage(img);
+                res.put(uimg.version, uimg);
+            }
+            m_images = res;
+        } catch(JSONException e) {
+            e.printStackTrace();
+            return false;
         }
         return true;
     }
@@ -138,18 +166,21 @@ public class UbuntuChannel {
     }
 
     public Set<Integer> getImageVersions() {
+        if(m_images == null)
+            return Collections.emptySet();
         return m_images.keySet();
     }
 
     public String getRawName() { return m_name; }
     public String getFullName() { return m_fullName; }
     public String getAlias() { return m_alias; }
-    public boolean hasImages() { return !m_images.isEmpty(); }
+    public boolean hasImages() { return m_images != null && !m_images.isEmpty(); }
 
     private String m_name;
     private String m_fullName;
     private String m_alias;
+    private String m_deviceName;
+    private String m_baseUrl;
     private HashMap<String, String> m_devices = new HashMap<String, String>();
-    private ArrayList<String> m_duplicates = null;
-    private TreeMap<Integer, UbuntuImage> m_images = null;
+    private volatile TreeMap<Integer, UbuntuImage> m_images = null;
 }
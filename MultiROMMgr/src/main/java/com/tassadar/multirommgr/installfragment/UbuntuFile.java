@@ -31,14 +31,16 @@ public class UbuntuFile {
     }
 
     public UbuntuFile(String keyringPath, int order) {
+        this.checksum = null;
         this.order = order;
         this.path = keyringPath;
         this.signature = keyringPath + ".asc";
+        this.size = 0;
     }
 
-    public String checksum;
-    public int order;
-    public String path;
-    public String signature;
-    public long size;
+    public final String checksum;
+    public final int order;
+    public final String path;
+    public final String signature;
+    public final long size;
 }
@@ -24,19 +24,22 @@ import org.json.JSONObject;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 public class UbuntuImage implements Comparator<UbuntuFile> {
     public UbuntuImage(JSONObject img) throws JSONException {
         version = img.getInt("version");
-        description = img.getString("description");
 
+        // description isn't shown anywhere, so it isn't kept
         JSONArray f = img.getJSONArray("files");
+        ArrayList<UbuntuFile> list = new ArrayList<UbuntuFile>(f.length());
         for(int i = 0; i < f.length(); ++i) {
             JSONObject file = f.getJSONObject(i);
-            files.add(new UbuntuFile(file));
+            list.add(new UbuntuFile(file));
         }
 
-        Collections.sort(files, this);
+        Collections.sort(list, this);
+        files = Collections.unmodifiableList(list);
     }
 
     @Override
@@ -44,7 +47,6 @@ public class UbuntuImage implements Comparator<UbuntuFile> {
         return f1.order - f2.order;
     }
 
-    public int version;
-    public String description;
-    public ArrayList<UbuntuFile> files = new ArrayList<UbuntuFile>();
+    public final int version;
+    public final List<UbuntuFile> files;
 }
@@ -20,6 +20,7 @@ package com.tassadar.multirommgr.installfragment;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import com.tassadar.multirommgr.ChecksumEngine;
 import com.tassadar.multirommgr.Device;
 import com.tassadar.multirommgr.MgrApp;
 import com.tassadar.multirommgr.MultiROM;
@@ -28,11 +29,15 @@ import com.tassadar.multirommgr.Rom;
 import com.tassadar.multirommgr.SettingsActivity;
 import com.tassadar.multirommgr.SettingsFragment;
 import com.tassadar.multirommgr.Utils;
+import com.tassadar.multirommgr.VerifiedFileCache;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import eu.chainfire.libsuperuser.Shell;
 
@@ -70,23 +75,109 @@ public class UbuntuInstallTask extends InstallAsyncTask  {
         ArrayList<UbuntuFile> files = m_info.buildDownloadList();
         final String base_url = m_device.getUbuntuBaseUrl();
 
+        PackageStore store = PackageStore.instance();
+        store.trim();
+
+        // In direct mode, files which aren't stored already are streamed
+        // straight into the ROM instead of being downloaded and copied.
+        SharedPreferences pref = MgrApp.getPreferences();
+        final boolean direct = pref.getBoolean(SettingsFragment.UTOUCH_DIRECT_INSTALL, false);
+
+        String romPath = null;
+        if(direct) {
+            romPath = createRom();
+            if(romPath == null) {
+                m_listener.onInstallComplete(false);
+                return null;
+            }
+        }
+        final String directDir = direct ? romPath + "/cache/recovery" : null;
+
+        DownloadScheduler scheduler = new DownloadScheduler();
+        LinkedHashMap<UbuntuFile, DownloadScheduler.Job> pending =
+                new LinkedHashMap<UbuntuFile, DownloadScheduler.Job>();
+        ArrayList<File> dirs = new ArrayList<File>(files.size());
         for(int i = 0; i < files.size(); ++i) {
             UbuntuFile f = files.get(i);
 
-            if(!downloadFile(destDir, base_url + f.path, f))
-                return null;
+            // Images are kept in the package store by checksum, together with
+            // their signature. Keyrings have no checksum and stay in destDir.
+            File dir = destDir;
+            String key = PackageStore.key("SHA-256", f.checksum);
+            if(key != null) {
+                if(store.contains(key))
+                    Log.d(TAG, f.path + " found in package store");
+                dir = store.getDir(key);
+            }
+            dirs.add(dir);
+        }
+
+        prehashFiles(files, dirs, base_url);
 
-            if(f.signature != null && !downloadFile(destDir, base_url + f.signature, null))
+        for(int i = 0; i < files.size(); ++i) {
+            UbuntuFile f = files.get(i);
+            File dir = dirs.get(i);
+
+            File destFile = scheduleFile(scheduler, dir, directDir, base_url + f.path, f, pending);
+            if(destFile == null)
+                return failRom(romPath);
+            m_destFiles.put(f, destFile);
+
+            if(f.signature != null) {
+                File destSignature = scheduleFile(scheduler, dir, directDir, base_url + f.signature, null, null);
+                if(destSignature == null)
+                    return failRom(romPath);
+                m_destSignatures.put(f, destSignature);
+            }
+        }
+
+        if(!downloadFiles(scheduler)) {
+            if(romPath != null)
+                Shell.SU.run("rm -r \"%s\"", romPath);
+            if(!m_canceled)
+                m_listener.onInstallComplete(false);
+            return null;
+        }
+
+        for(Map.Entry<UbuntuFile, DownloadScheduler.Job> e : pending.entrySet()) {
+            if(!verifyFile(e.getKey(), e.getValue())) {
+                if(romPath != null)
+                    Shell.SU.run("rm -r \"%s\"", romPath);
                 return null;
+            }
+            if(e.getValue().sink == null) {
+                VerifiedFileCache.instance().put(m_destFiles.get(e.getKey()), "SHA-256", e.getValue().getChecksum());
+                store.add(PackageStore.key("SHA-256", e.getKey().checksum));
+            }
         }
 
         m_listener.onProgressUpdate(0, 0, true, Utils.getString(R.string.installing_utouch));
         m_listener.enableCancel(false);
 
+        if(romPath == null) {
+            romPath = createRom();
+            if(romPath == null) {
+                m_listener.onInstallComplete(false);
+                return null;
+            }
+        }
+
+        if(!buildCommandFile(romPath + "/cache/recovery/ubuntu_command"))
+            return failRom(romPath);
+
+        if(!copyFiles(destDir, suDestDir, romPath + "/cache/recovery", files) ||
+                !writeBaseUrl(romPath + "/cache/recovery"))
+            return failRom(romPath);
+
+        m_listener.requestRecovery(true);
+        m_listener.onInstallComplete(true);
+        return null;
+    }
+
+    private String createRom() {
         String romPath = m_multirom.getNewRomFolder("utouch_" + m_info.channelName);
         if(romPath == null) {
             m_listener.onInstallLog(Utils.getString(R.string.failed_create_rom));
-            m_listener.onInstallComplete(false);
             return null;
         }
 
@@ -96,129 +187,210 @@ public class UbuntuInstallTask extends InstallAsyncTask  {
         if(!m_multirom.initUbuntuDir(romPath)) {
             m_listener.onInstallLog(Utils.getString(R.string.failed_rom_init));
             Shell.SU.run("rm -r \"%s\"", romPath);
-            m_listener.onInstallComplete(false);
             return null;
         }
 
         m_multirom.setRomIcon(rom, R.drawable.romic_ubuntu1);
+        return romPath;
+    }
 
-        if(!buildCommandFile(romPath + "/cache/recovery/ubuntu_command")) {
+    private Void failRom(String romPath) {
+        if(romPath != null)
             Shell.SU.run("rm -r \"%s\"", romPath);
-            m_listener.onInstallComplete(false);
-            return null;
-        }
+        m_listener.onInstallComplete(false);
+        return null;
+    }
 
-        if(!copyFiles(suDestDir, romPath + "/cache/recovery", files) ||
-                !writeBaseUrl(romPath + "/cache/recovery")) {
-            Shell.SU.run("rm -r \"%s\"", romPath);
-            m_listener.onInstallComplete(false);
-            return null;
+    /**
+     * Files downloaded before there were journals have to be hashed to find
+     * out if they can be skipped, unless the verified-file cache knows them
+     * already. Do all of them at once, on the checksum engine's pool,
+     * instead of one by one in scheduleFile().
+     */
+    private void prehashFiles(ArrayList<UbuntuFile> files, ArrayList<File> dirs, String base_url) {
+        VerifiedFileCache cache = VerifiedFileCache.instance();
+        ArrayList<File> toHash = new ArrayList<File>();
+        for(int i = 0; i < files.size(); ++i) {
+            UbuntuFile f = files.get(i);
+            if(f.checksum == null)
+                continue;
+
+            File destFile = new File(dirs.get(i), Utils.getFilenameFromUrl(base_url + f.path));
+            if(DownloadJournal.getJournalFile(destFile).exists() ||
+                    SegmentedDownload.hasPartialState(destFile))
+                continue;
+
+            if(destFile.exists() && destFile.length() >= f.size &&
+                    cache.getCached(destFile, "SHA-256") == null)
+                toHash.add(destFile);
         }
 
-        m_listener.requestRecovery(true);
-        m_listener.onInstallComplete(true);
-        return null;
+        if(toHash.isEmpty())
+            return;
+
+        Map<File, String> hashes = ChecksumEngine.calculate(toHash, "SHA-256");
+        for(Map.Entry<File, String> e : hashes.entrySet())
+            cache.put(e.getKey(), "SHA-256", e.getValue());
     }
 
-    private boolean downloadFile(File destDir, String url, UbuntuFile file) {
+    /**
+     * @param directDir if not null, files which aren't downloaded yet are
+     *                  streamed into this root-owned dir instead of destDir
+     * @return file url will be downloaded to, null on failure
+     */
+    private File scheduleFile(DownloadScheduler scheduler, File destDir, String directDir,
+            String url, UbuntuFile file, Map<UbuntuFile, DownloadScheduler.Job> pending) {
         String filename = Utils.getFilenameFromUrl(url);
         if(filename == null || filename.isEmpty()) {
             m_listener.onInstallLog(Utils.getString(R.string.invalid_url, url));
             m_listener.onInstallComplete(false);
-            return false;
+            return null;
         }
 
         File destFile = new File(destDir, filename);
         long startOffset = 0;
-        if(destFile.exists() && file != null) {
+        DownloadJournal journal = DownloadJournal.load(destFile);
+        if(journal != null && file == null) {
+            // signatures have no checksum, an untouched finished download will do
+            if(journal.isCompleteFor(url, 0, null))
+                return destFile;
+        } else if(journal != null && !SegmentedDownload.hasPartialState(destFile)) {
+            if(file.checksum != null && journal.isCompleteFor(url, file.size, "SHA-256") &&
+                    file.checksum.equals(journal.getChecksum())) {
+                m_listener.onInstallLog(Utils.getString(R.string.checking_file, Utils.trim(filename, 40)));
+                m_listener.onInstallLog(Utils.getString(R.string.ok_skippping));
+                return destFile;
+            }
+            // keyrings and the like have no checksum either
+            if(file.checksum == null && journal.isCompleteFor(url, file.size, null))
+                return destFile;
+            startOffset = journal.getResumeOffset(url);
+        } else if(destFile.exists() && file != null && !SegmentedDownload.hasPartialState(destFile)) {
             long fileSize = destFile.length();
             if(fileSize < file.size) {
                 startOffset = fileSize;
             } else if(file.checksum != null) {
                 m_listener.onInstallLog(Utils.getString(R.string.checking_file, Utils.trim(filename, 40)));
-                String sha256 = Utils.calculateSHA256(destFile);
+                String sha256 = VerifiedFileCache.instance().getChecksum(destFile, "SHA-256");
                 if(file.checksum.equals(sha256)) {
                     m_listener.onInstallLog(Utils.getString(R.string.ok_skippping));
-                    return true;
+                    return destFile;
                 } else {
                     m_listener.onInstallLog(Utils.getString(R.string.failed_redownload));
                 }
             }
         }
 
-        if(!downloadFile(url, destFile, startOffset)) {
-            if(!m_canceled)
-                m_listener.onInstallComplete(false);
-            return false;
+        if(directDir != null) {
+            File rootFile = new File(directDir, filename);
+            String checksum = file != null ? file.checksum : null;
+            DownloadScheduler.Job job = scheduler.add(url, new RootFileSink(rootFile.getAbsolutePath(), checksum),
+                    rootFile, file != null ? file.size : 0, checksum != null ? "SHA-256" : null);
+            if(checksum != null)
+                pending.put(file, job);
+            m_streamed.add(rootFile);
+            return rootFile;
         }
 
-        if(file != null && file.checksum != null) {
-            m_listener.onInstallLog(Utils.getString(R.string.checking_file, m_downFilename));
-            String sha256 = Utils.calculateSHA256(destFile);
-            if(file.checksum.equals(sha256))
-                m_listener.onInstallLog(Utils.getString(R.string.ok));
-            else {
-                m_listener.onInstallLog(Utils.getString(R.string.failed));
-                m_listener.onInstallComplete(false);
-                return false;
-            }
+        if(file != null && file.checksum != null)
+            pending.put(file, scheduler.add(url, destFile, startOffset, file.size, "SHA-256"));
+        else
+            scheduler.add(url, destFile, startOffset, file != null ? file.size : 0);
+        return destFile;
+    }
+
+    private boolean verifyFile(UbuntuFile file, DownloadScheduler.Job job) {
+        final String filename = Utils.getFilenameFromUrl(file.path);
+
+        m_listener.onInstallLog(Utils.getString(R.string.checking_file, Utils.trim(filename, 40)));
+        if(file.checksum.equals(job.getChecksum()))
+            m_listener.onInstallLog(Utils.getString(R.string.ok));
+        else {
+            m_listener.onInstallLog(Utils.getString(R.string.failed));
+            m_listener.onInstallComplete(false);
+            return false;
         }
         return true;
     }
 
-    private boolean copyFiles(String src, String dest, ArrayList<UbuntuFile> files) {
+    private boolean copyFiles(File destDir, String suDestDir, String dest, ArrayList<UbuntuFile> files) {
         for(int i = 0; i < files.size(); ++i) {
             UbuntuFile f = files.get(i);
-            String filename = Utils.getFilenameFromUrl(f.path);
-            m_listener.onInstallLog(Utils.getString(R.string.copying_file, Utils.trim(filename, 40)));
+            File destFile = m_destFiles.get(f);
+            File destSignature = m_destSignatures.get(f);
+            if(m_streamed.contains(destFile) && m_streamed.contains(destSignature))
+                continue;
 
-            if(!copyFile(src + "/" + filename, dest + "/" + filename)) {
-                m_listener.onInstallLog(Utils.getString(R.string.failed_file_copy, filename));
-                return false;
-            }
+            String filename = destFile.getName();
+            m_listener.onInstallLog(Utils.getString(R.string.copying_file, Utils.trim(filename, 40)));
 
-            filename = Utils.getFilenameFromUrl(f.signature);
-            if(!copyFile(src + "/" + filename, dest + "/" + filename)) {
-                m_listener.onInstallLog(Utils.getString(R.string.failed_file_copy, filename));
+            if(!copyToRom(destFile, destDir, suDestDir, dest) ||
+                    !copyToRom(destSignature, destDir, suDestDir, dest))
                 return false;
-            }
             m_listener.onInstallLog(Utils.getString(R.string.ok));
         }
 
         SharedPreferences pref = MgrApp.getPreferences();
         if(pref.getBoolean(SettingsFragment.UTOUCH_DELETE_FILES, false)) {
             m_listener.onInstallLog(Utils.getString(R.string.deleting_used_files));
+            PackageStore store = PackageStore.instance();
             for(int i = 0; i < files.size(); ++i) {
                 UbuntuFile f = files.get(i);
 
-                File file = new File(src, Utils.getFilenameFromUrl(f.path));
-                file.delete();
-                file = new File(src, Utils.getFilenameFromUrl(f.signature));
-                file.delete();
+                String key = PackageStore.key("SHA-256", f.checksum);
+                if(key != null) {
+                    store.remove(key);
+                } else {
+                    deleteLocal(m_destFiles.get(f));
+                    deleteLocal(m_destSignatures.get(f));
+                }
             }
         }
 
         return true;
     }
 
+    private boolean copyToRom(File f, File destDir, String suDestDir, String dest) {
+        if(m_streamed.contains(f))
+            return true;
+
+        String src = toSuPath(f, destDir, suDestDir);
+        if(src == null || !copyFile(src, dest + "/" + f.getName())) {
+            m_listener.onInstallLog(Utils.getString(R.string.failed_file_copy, f.getName()));
+            return false;
+        }
+        return true;
+    }
+
+    private void deleteLocal(File f) {
+        if(m_streamed.contains(f))
+            return;
+        f.delete();
+        DownloadJournal.delete(f);
+    }
+
+    /**
+     * Files are in destDir or in the package store, both of which are in the
+     * download dir. suDestDir is where root sees destDir.
+     */
+    private static String toSuPath(File f, File destDir, String suDestDir) {
+        final String downloadDir = destDir.getParentFile().getAbsolutePath();
+        final String path = f.getAbsolutePath();
+        if(!path.startsWith(downloadDir + "/"))
+            return null;
+        return new File(suDestDir).getParent() + path.substring(downloadDir.length());
+    }
+
     private boolean copyFile(final String src, final String dst) {
         List<String> out = Shell.SU.run("cat \"%s\" > \"%s\" && echo success", src, dst);
         return out != null && !out.isEmpty() && out.get(0).equals("success");
     }
 
     private String findSUDestDir(File destDir) {
-        File tmp = new File(destDir, "ut_test_file");
-        try {
-            tmp.createNewFile();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-
-        File suFile = Utils.findSdcardFileSu(tmp);
-        if(suFile == null)
+        File suDir = Utils.findSdcardFileSu(destDir);
+        if(suDir == null)
             return null;
-        return suFile.getParent();
+        return suDir.getAbsolutePath();
     }
 
     private boolean buildCommandFile(String dest) {
@@ -256,6 +428,11 @@ public class UbuntuInstallTask extends InstallAsyncTask  {
     }
 
     private UbuntuInstallInfo m_info;
+    // files which were downloaded right into the ROM
+    private HashSet<File> m_streamed = new HashSet<File>();
+    // UbuntuFiles belong to the shared image model, where they went is per install
+    private HashMap<UbuntuFile, File> m_destFiles = new HashMap<UbuntuFile, File>();
+    private HashMap<UbuntuFile, File> m_destSignatures = new HashMap<UbuntuFile, File>();
     private MultiROM m_multirom;
     private Device m_device;
 }
@@ -32,9 +32,12 @@ import org.json.JSONTokener;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class UbuntuManifest {
     private static final String TAG = "MROMMgr::UbuntuManifest";
@@ -42,6 +45,12 @@ public class UbuntuManifest {
     public static final String DEFAULT_BASE_URL = "https://system-image.ubuntu.com";
     public static final String CHANNELS_PATH = "/channels.json";
     public static final String NO_FLAVOUR = "*none*";
+    public static final String DEFAULT_CHANNEL = "ubuntu-touch/devel";
+    private static final String LAST_CHANNEL = "utouch_last_channel";
+    private static final int PREFETCH_CHANNELS = 4;
+    private static final int LOAD_THREADS = 2;
+
+    private static ExecutorService s_loadPool;
 
     public boolean downloadAndParse(Device dev) {
         ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
@@ -88,50 +97,21 @@ public class UbuntuManifest {
             return false;
         }
 
-        // Remove channels without the device we're currently running on and load images
-        Iterator<Map.Entry<String, TreeMap<String,UbuntuChannel>>> f_itr = m_flavours.entrySet().iterator();
+        // Remove channels without the device we're currently running on.
+        // Image indexes are loaded later, only for channels the user picks.
+        Iterator<TreeMap<String, UbuntuChannel>> f_itr = m_flavours.values().iterator();
         while(f_itr.hasNext()) {
-            Map<String, UbuntuChannel> channelMap = f_itr.next().getValue();
-            Iterator<Map.Entry<String,UbuntuChannel>> c_itr = channelMap.entrySet().iterator();
+            TreeMap<String, UbuntuChannel> channelMap = f_itr.next();
+            Iterator<UbuntuChannel> c_itr = channelMap.values().iterator();
             while(c_itr.hasNext()) {
-                UbuntuChannel c = c_itr.next().getValue();
-
-                // Devices like deb or tilapia won't be in
-                // Ubuntu Touch manifests, yet the versions
-                // for flo/grouper work fine - select those.
-                String dev_name = dev.getName();
-                if(dev.getUbuntuDevice() != ""){
-                    dev_name = dev.getUbuntuDevice();
-                    if (!c.hasDevice(dev_name)) {
-                        c_itr.remove();
-                        continue;
-                    }
-                }else {
-                    if (!c.hasDevice(dev_name)) {
-                        dev_name = dev.getBaseVariantName();
-
-                        if (!c.hasDevice(dev_name)) {
-                            c_itr.remove();
-                            continue;
-                        }
-                    }
-                }
-
-                try {
-                    if(!c.loadDeviceImages(dev_name, dev))
-                        return false;
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return false;
-                }
-
-                // Remove channels with no images for our device
-                if(!c.hasImages()) {
+                UbuntuChannel c = c_itr.next();
+                String dev_name = getChannelDevice(c, dev);
+                if(dev_name == null) {
                     c_itr.remove();
                     continue;
                 }
-
-                Log.d(TAG, "Got channel: " + c.getDisplayName());
+                c.setDevice(dev_name, dev.getUbuntuBaseUrl());
+                Log.d(TAG, "Got channel: " + c.getFullName());
             }
 
             if(channelMap.isEmpty())
@@ -140,6 +120,101 @@ public class UbuntuManifest {
         return true;
     }
 
+    /**
+     * Devices like deb or tilapia won't be in Ubuntu Touch manifests, yet
+     * the versions for flo/grouper work fine - select those.
+     * @return name of the device in the channel, null if it isn't there
+     */
+    private static String getChannelDevice(UbuntuChannel c, Device dev) {
+        if(!dev.getUbuntuDevice().isEmpty())
+            return c.hasDevice(dev.getUbuntuDevice()) ? dev.getUbuntuDevice() : null;
+        if(c.hasDevice(dev.getName()))
+            return dev.getName();
+        if(c.hasDevice(dev.getBaseVariantName()))
+            return dev.getBaseVariantName();
+        return null;
+    }
+
+    /**
+     * @return the channel the user most likely wants - the one last installed
+     *         from, the default channel or the first one, null if there are none
+     */
+    public UbuntuChannel getPreferredChannel() {
+        String last = MgrApp.getPreferences().getString(LAST_CHANNEL, null);
+        UbuntuChannel c = last != null ? findChannel(last) : null;
+        if(c == null)
+            c = findChannel(DEFAULT_CHANNEL);
+        if(c == null && !m_flavours.isEmpty())
+            c = m_flavours.firstEntry().getValue().firstEntry().getValue();
+        return c;
+    }
+
+    public static void setLastChannel(UbuntuChannel c) {
+        SharedPreferences.Editor e = MgrApp.getPreferences().edit();
+        e.putString(LAST_CHANNEL, c.getFullName());
+        e.commit();
+    }
+
+    /**
+     * Starts loading images of the channels the user is most likely to
+     * pick in the background: the preferred one, the default one and the
+     * rest of the preferred one's flavour, at most PREFETCH_CHANNELS.
+     */
+    public void prefetch() {
+        UbuntuChannel preferred = getPreferredChannel();
+        if(preferred == null)
+            return;
+
+        ArrayList<UbuntuChannel> list = new ArrayList<UbuntuChannel>(PREFETCH_CHANNELS);
+        list.add(preferred);
+
+        UbuntuChannel def = findChannel(DEFAULT_CHANNEL);
+        if(def != null && def != preferred)
+            list.add(def);
+
+        for(TreeMap<String, UbuntuChannel> channelMap : m_flavours.values()) {
+            if(!channelMap.containsValue(preferred))
+                continue;
+            for(UbuntuChannel c : channelMap.values()) {
+                if(list.size() >= PREFETCH_CHANNELS)
+                    break;
+                if(!list.contains(c))
+                    list.add(c);
+            }
+            break;
+        }
+
+        loadChannels(list);
+    }
+
+    /**
+     * Loads images of the channels on a small pool, so a few indexes are
+     * downloaded at once without flooding the server. Returns right away,
+     * a channel picked while it is still loading waits for it in
+     * {@link UbuntuChannel#loadImages()}.
+     */
+    public static void loadChannels(List<UbuntuChannel> channels) {
+        ExecutorService pool = getLoadPool();
+        for(final UbuntuChannel c : channels) {
+            if(c.isLoaded())
+                continue;
+
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(!c.loadImages())
+                        Log.w(TAG, "Failed to prefetch channel " + c.getFullName());
+                }
+            });
+        }
+    }
+
+    private static synchronized ExecutorService getLoadPool() {
+        if(s_loadPool == null)
+            s_loadPool = Executors.newFixedThreadPool(LOAD_THREADS);
+        return s_loadPool;
+    }
+
     private void addChannel(String full_name, JSONObject channelObject) throws JSONException {
         String flavour_name, channel_name;
         int idx = full_name.indexOf('/');
@@ -80,6 +80,10 @@ public class UbuntuManifestAsyncTask extends AsyncTask<Object, Void, UbuntuManif
             return res;
         }
 
+        // The card shows up right away, the most likely channel is
+        // loaded while the user looks at it
+        man.prefetch();
+
         res.manifest = man;
         res.freeSpace = multirom.getFreeSpaceMB();
 
@@ -36,6 +36,7 @@ import com.tassadar.multirommgr.MgrApp;
 import com.tassadar.multirommgr.MultiROM;
 import com.tassadar.multirommgr.R;
 import com.tassadar.multirommgr.Rom;
+import com.tassadar.multirommgr.RomRepository;
 import com.tassadar.multirommgr.SettingsFragment;
 import com.tassadar.multirommgr.StatusAsyncTask;
 import com.tassadar.multirommgr.Utils;
@@ -118,8 +119,9 @@ public class RomBootDialog extends DialogFragment implements View.OnClickListene
             MultiROM m = StatusAsyncTask.instance().getMultiROM();
             boolean has_kexec = StatusAsyncTask.instance().hasKexecKernel();
             if (m == null) {
-                m = new MultiROM();
-                if (!m.findMultiROMDir() || !m.findVersion()) {
+                // booting needs only MultiROM itself, not a fresh list of ROMs
+                m = RomRepository.instance().getMultiROM();
+                if (m == null) {
                     a.runOnUiThread(new SetErrorTextRunnable(R.string.rom_boot_failed));
                     return;
                 }
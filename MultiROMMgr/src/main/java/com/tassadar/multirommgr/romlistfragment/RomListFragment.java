@@ -28,10 +28,13 @@ import com.tassadar.multirommgr.MainFragment;
 import com.tassadar.multirommgr.MultiROMSwipeRefreshLayout;
 import com.tassadar.multirommgr.R;
 import com.tassadar.multirommgr.Rom;
+import com.tassadar.multirommgr.RomRepository;
 import com.tassadar.multirommgr.StatusAsyncTask;
 
+import java.util.ArrayList;
 
-public class RomListFragment extends MainFragment implements AdapterView.OnItemClickListener, RomListItem.OnRomActionListener, MultiROMSwipeRefreshLayout.ScrollUpListener {
+public class RomListFragment extends MainFragment implements AdapterView.OnItemClickListener, RomListItem.OnRomActionListener, MultiROMSwipeRefreshLayout.ScrollUpListener,
+        RomRepository.RomRepositoryListener {
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -47,9 +50,31 @@ public class RomListFragment extends MainFragment implements AdapterView.OnItemC
 
         m_actListener.addScrollUpListener(this);
         m_actListener.onFragmentViewCreated();
+        RomRepository.instance().addListener(this);
         return m_view;
     }
 
+    @Override
+    public void onDestroyView() {
+        RomRepository.instance().removeListener(this);
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onRomsRefreshed(final RomRepository.Snapshot snapshot) {
+        // Scans started from elsewhere (e.g. the widget) update the list too
+        if(snapshot.multirom == null || m_romList == null)
+            return;
+
+        m_romList.post(new Runnable() {
+            @Override
+            public void run() {
+                if(m_adapter != null)
+                    m_adapter.set(new ArrayList<Rom>(snapshot.roms));
+            }
+        });
+    }
+
     public void invalidateAdapter() {
         if(m_adapter != null)
             m_adapter.setChanged();
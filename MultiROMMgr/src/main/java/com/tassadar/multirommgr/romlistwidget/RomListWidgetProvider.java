@@ -24,19 +24,14 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.util.Log;
 import android.widget.RemoteViews;
 
 import com.tassadar.multirommgr.MainActivity;
 import com.tassadar.multirommgr.MgrApp;
-import com.tassadar.multirommgr.MultiROM;
 import com.tassadar.multirommgr.R;
+import com.tassadar.multirommgr.RomRepository;
 import com.tassadar.multirommgr.romlistfragment.RomBootActivity;
 
-import java.lang.ref.WeakReference;
-
 public class RomListWidgetProvider extends AppWidgetProvider {
     private static final String ACTION_REFRESH = "com.tassadar.multirommgr.romlistwidget.REFRESH";
     private static final String ACTION_ROM_CLICK = "com.tassadar.multirommgr.romlistwidget.ROM_CLICK";
@@ -98,7 +93,7 @@ public class RomListWidgetProvider extends AppWidgetProvider {
     public void onReceive(Context ctx, Intent intent) {
         final String action = intent.getAction();
         if (action.equals(ACTION_REFRESH)) {
-            RefreshThread.startIfNotRunning();
+            RomRepository.instance().refreshAsync();
         } else if(action.equals(ACTION_ROM_CLICK)) {
             Intent i = new Intent(MgrApp.getAppContext(), RomBootActivity.class);
             i.putExtras(intent.getExtras());
@@ -109,30 +104,4 @@ public class RomListWidgetProvider extends AppWidgetProvider {
         }
         super.onReceive(ctx, intent);
     }
-
-    private static class RefreshThread extends Thread {
-        private static WeakReference<RefreshThread> s_instance = new WeakReference<RefreshThread>(null);
-
-        static public synchronized void startIfNotRunning() {
-            RefreshThread t = s_instance.get();
-            if(t != null && t.isAlive())
-                return;
-
-            t = new RefreshThread();
-            t.start();
-            s_instance = new WeakReference<RefreshThread>(t);
-        }
-
-        @Override
-        public void run() {
-            MultiROM m = new MultiROM();
-            if(!m.findMultiROMDir())
-                return;
-
-            if(!m.findVersion())
-                return;
-
-            m.findRoms();
-        }
-    }
 }
@@ -17,7 +17,6 @@
 
 package com.tassadar.multirommgr.romlistwidget;
 
-import android.appwidget.AppWidgetManager;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
@@ -25,7 +24,6 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.os.Bundle;
-import android.util.Log;
 import android.widget.RemoteViews;
 import android.widget.RemoteViewsService;
 
@@ -33,6 +31,7 @@ import com.tassadar.multirommgr.R;
 import com.tassadar.multirommgr.Rom;
 
 import java.io.File;
+import java.util.HashMap;
 
 public class RomListWidgetService extends RemoteViewsService {
     @Override
@@ -42,106 +41,188 @@ public class RomListWidgetService extends RemoteViewsService {
 }
 
 class RomListViewsFactory implements RemoteViewsService.RemoteViewsFactory {
+    private static final String[] PROJECTION = {
+            RomListOpenHelper.KEY_ID,
+            RomListOpenHelper.KEY_NAME,
+            RomListOpenHelper.KEY_TYPE,
+            RomListOpenHelper.KEY_ACTIVE,
+            RomListOpenHelper.KEY_BASE_PATH,
+            RomListOpenHelper.KEY_ICON_PATH,
+            RomListOpenHelper.KEY_PARTITION_NAME,
+            RomListOpenHelper.KEY_PARTITION_MOUNT_PATH,
+            RomListOpenHelper.KEY_PARTITION_UUID,
+            RomListOpenHelper.KEY_PARTITION_FS,
+            RomListOpenHelper.KEY_PARTITION_INFO,
+            RomListOpenHelper.KEY_ICON_NAME,
+    };
+
+    // Indexes into PROJECTION
+    private static final int COL_ID                   = 0;
+    private static final int COL_NAME                 = 1;
+    private static final int COL_TYPE                 = 2;
+    private static final int COL_ACTIVE               = 3;
+    private static final int COL_BASE_PATH            = 4;
+    private static final int COL_ICON_PATH            = 5;
+    private static final int COL_PARTITION_NAME       = 6;
+    private static final int COL_PARTITION_MOUNT_PATH = 7;
+    private static final int COL_PARTITION_UUID       = 8;
+    private static final int COL_PARTITION_FS         = 9;
+    private static final int COL_PARTITION_INFO       = 10;
+    private static final int COL_ICON_NAME            = 11;
+
+    /** Everything getViewAt needs, resolved once in onDataSetChanged */
+    private static class RomRow {
+        public RomRow(long id, String name, String partitionInfo, int textColor,
+                      int iconId, Bitmap iconBitmap, Intent fillInIntent) {
+            this.id = id;
+            this.name = name;
+            this.partitionInfo = partitionInfo;
+            this.textColor = textColor;
+            this.iconId = iconId;
+            this.iconBitmap = iconBitmap;
+            this.fillInIntent = fillInIntent;
+        }
+
+        public final long id;
+        public final String name;
+        public final String partitionInfo;
+        public final int textColor;
+        public final int iconId;
+        public final Bitmap iconBitmap;
+        public final Intent fillInIntent;
+    }
+
     public RomListViewsFactory(Context ctx, Intent intent) {
         m_context = ctx;
     }
 
     @Override
     public void onCreate() {
-        // cursor is initiated in onDataSetChanged();
+        // rows are loaded in onDataSetChanged();
     }
 
     @Override
     public void onDataSetChanged() {
-        if (m_cursor != null)
-            m_cursor.close();
-
-        m_cursor = m_context.getContentResolver()
-                .query(RomListDataProvider.CONTENT_URI, null, null, null, null);
-    }
+        Cursor c = m_context.getContentResolver()
+                .query(RomListDataProvider.CONTENT_URI, PROJECTION, null, null, null);
+        if(c == null) {
+            m_rows = new RomRow[0];
+            return;
+        }
 
-    @Override
-    public void onDestroy() {
-        if(m_cursor != null)
-            m_cursor.close();
-    }
+        HashMap<String, Bitmap> icons = new HashMap<String, Bitmap>();
+        try {
+            RomRow[] rows = new RomRow[c.getCount()];
+            for(int i = 0; i < rows.length && c.moveToPosition(i); ++i)
+                rows[i] = buildRow(c, icons);
+            m_rows = rows;
+        } finally {
+            c.close();
+        }
 
-    @Override
-    public int getCount() {
-        return m_cursor.getCount();
+        // Only keep thumbnails which are still in use
+        m_iconCache = icons;
     }
 
-    @Override
-    public RemoteViews getViewAt(int i) {
-
-        if(!m_cursor.moveToPosition(i))
-            return null;
-
-        int nameCol = m_cursor.getColumnIndex(RomListOpenHelper.KEY_NAME);
-        int typeCol = m_cursor.getColumnIndex(RomListOpenHelper.KEY_TYPE);
-        int activeCol = m_cursor.getColumnIndex(RomListOpenHelper.KEY_ACTIVE);
-        int partition_infoCol = m_cursor.getColumnIndex(RomListOpenHelper.KEY_PARTITION_INFO);
-        int iconNameCol = m_cursor.getColumnIndex(RomListOpenHelper.KEY_ICON_NAME);
-
-        String name = m_cursor.getString(nameCol);
-        int type = m_cursor.getInt(typeCol);
-        int active = m_cursor.getInt(activeCol);
-        String partition_info = m_cursor.getString(partition_infoCol);
-        String iconName = m_cursor.getString(iconNameCol);
+    private RomRow buildRow(Cursor c, HashMap<String, Bitmap> icons) {
+        final String name = c.getString(COL_NAME);
+        final int type = c.getInt(COL_TYPE);
+        final int active = c.getInt(COL_ACTIVE);
+        final String partition_info = c.getString(COL_PARTITION_INFO);
+        final String iconName = c.getString(COL_ICON_NAME);
 
         int icon_id = 0;
         Bitmap icon_bitmap = null;
-        if(iconName.startsWith(m_context.getApplicationContext().getPackageName())) {
+        if(iconName != null && iconName.startsWith(m_context.getPackageName())) {
             icon_id = m_context.getResources().getIdentifier(iconName, null, null);
-        } else {
-            File iconsDir = Rom.getIconsDir();
-            if(iconsDir != null) {
-                File path = new File(iconsDir, iconName + ".png");
-                icon_bitmap = BitmapFactory.decodeFile(path.getAbsolutePath());
-            }
+        } else if(iconName != null) {
+            icon_bitmap = loadIconBitmap(iconName, icons);
         }
 
         if(icon_id == 0 && icon_bitmap == null)
             icon_id = R.drawable.romic_default;
 
-        RemoteViews rv = new RemoteViews(m_context.getPackageName(), R.layout.rom_list_widget_item);
-        rv.setTextViewText(R.id.rom_name, name);
-        if(active == 1)
-            rv.setTextColor(R.id.rom_name, Color.BLUE);
-        else
-            rv.setTextColor(R.id.rom_name, Color.BLACK);
+        final Bundle extras = new Bundle();
+        extras.putString(RomListOpenHelper.KEY_NAME, name);
+        extras.putInt(RomListOpenHelper.KEY_TYPE, type);
+        extras.putInt(RomListOpenHelper.KEY_ACTIVE, active);
+        extras.putString(RomListOpenHelper.KEY_BASE_PATH, c.getString(COL_BASE_PATH));
+        extras.putString(RomListOpenHelper.KEY_ICON_PATH, c.getString(COL_ICON_PATH));
+        extras.putString(RomListOpenHelper.KEY_PARTITION_NAME, c.getString(COL_PARTITION_NAME));
+        extras.putString(RomListOpenHelper.KEY_PARTITION_MOUNT_PATH, c.getString(COL_PARTITION_MOUNT_PATH));
+        extras.putString(RomListOpenHelper.KEY_PARTITION_UUID, c.getString(COL_PARTITION_UUID));
+        extras.putString(RomListOpenHelper.KEY_PARTITION_FS, c.getString(COL_PARTITION_FS));
+        extras.putString(RomListOpenHelper.KEY_PARTITION_INFO, partition_info);
 
+        final Intent fillInIntent = new Intent();
+        fillInIntent.putExtras(extras);
 
-        rv.setTextViewText(R.id.rom_partition_info, partition_info);
+        return new RomRow(c.getLong(COL_ID), name, partition_info,
+                active == 1 ? Color.BLUE : Color.BLACK,
+                icon_id, icon_bitmap, fillInIntent);
+    }
 
-        if(icon_id != 0)
-            rv.setImageViewResource(R.id.rom_icon, icon_id);
-        else
-            rv.setImageViewBitmap(R.id.rom_icon, icon_bitmap);
+    private Bitmap loadIconBitmap(String iconName, HashMap<String, Bitmap> icons) {
+        Bitmap b = icons.get(iconName);
+        if(b != null)
+            return b;
 
-        final Intent fillInIntent = new Intent();
-        final Bundle extras = new Bundle();
-        extras.putString(RomListOpenHelper.KEY_NAME, name);
-        extras.putInt(RomListOpenHelper.KEY_TYPE, type);
+        b = m_iconCache.get(iconName);
+        if(b == null) {
+            File iconsDir = Rom.getIconsDir();
+            if(iconsDir == null)
+                return null;
 
-        extras.putInt(RomListOpenHelper.KEY_ACTIVE, m_cursor.getInt(m_cursor.getColumnIndex(RomListOpenHelper.KEY_ACTIVE)));
-        extras.putString(RomListOpenHelper.KEY_BASE_PATH, m_cursor.getString(m_cursor.getColumnIndex(RomListOpenHelper.KEY_BASE_PATH)));
-        extras.putString(RomListOpenHelper.KEY_ICON_PATH, m_cursor.getString(m_cursor.getColumnIndex(RomListOpenHelper.KEY_ICON_PATH)));
-        extras.putString(RomListOpenHelper.KEY_PARTITION_NAME, m_cursor.getString(m_cursor.getColumnIndex(RomListOpenHelper.KEY_PARTITION_NAME)));
-        extras.putString(RomListOpenHelper.KEY_PARTITION_MOUNT_PATH, m_cursor.getString(m_cursor.getColumnIndex(RomListOpenHelper.KEY_PARTITION_MOUNT_PATH)));
-        extras.putString(RomListOpenHelper.KEY_PARTITION_UUID, m_cursor.getString(m_cursor.getColumnIndex(RomListOpenHelper.KEY_PARTITION_UUID)));
-        extras.putString(RomListOpenHelper.KEY_PARTITION_FS, m_cursor.getString(m_cursor.getColumnIndex(RomListOpenHelper.KEY_PARTITION_FS)));
+            File path = new File(iconsDir, iconName + ".png");
+            b = BitmapFactory.decodeFile(path.getAbsolutePath());
+            if(b == null)
+                return null;
+        }
 
-        extras.putString(RomListOpenHelper.KEY_PARTITION_INFO, partition_info);
-        fillInIntent.putExtras(extras);
-        rv.setOnClickFillInIntent(R.id.rom_list_widget_item, fillInIntent);
+        icons.put(iconName, b);
+        return b;
+    }
 
+    @Override
+    public void onDestroy() {
+        m_rows = new RomRow[0];
+        m_iconCache = new HashMap<String, Bitmap>();
+    }
+
+    @Override
+    public int getCount() {
+        return m_rows.length;
+    }
+
+    @Override
+    public RemoteViews getViewAt(int i) {
+        final RomRow[] rows = m_rows;
+        if(i < 0 || i >= rows.length)
+            return null;
+
+        final RomRow row = rows[i];
+
+        RemoteViews rv = new RemoteViews(m_context.getPackageName(), R.layout.rom_list_widget_item);
+        rv.setTextViewText(R.id.rom_name, row.name);
+        rv.setTextColor(R.id.rom_name, row.textColor);
+        rv.setTextViewText(R.id.rom_partition_info, row.partitionInfo);
+
+        if(row.iconId != 0)
+            rv.setImageViewResource(R.id.rom_icon, row.iconId);
+        else
+            rv.setImageViewBitmap(R.id.rom_icon, row.iconBitmap);
+
+        rv.setOnClickFillInIntent(R.id.rom_list_widget_item, row.fillInIntent);
         return rv;
     }
 
     @Override
     public RemoteViews getLoadingView() {
-        return null;
+        RemoteViews rv = new RemoteViews(m_context.getPackageName(), R.layout.rom_list_widget_item);
+        rv.setTextViewText(R.id.rom_name, m_context.getString(R.string.widget_loading));
+        rv.setTextViewText(R.id.rom_partition_info, "");
+        rv.setImageViewResource(R.id.rom_icon, R.drawable.romic_default);
+        return rv;
     }
 
     @Override
@@ -151,11 +232,10 @@ class RomListViewsFactory implements RemoteViewsService.RemoteViewsFactory {
 
     @Override
     public long getItemId(int i) {
-        if(m_cursor.moveToPosition(i)) {
-            int colId = m_cursor.getColumnIndex(RomListOpenHelper.KEY_ID);
-            return m_cursor.getLong(colId);
-        }
-        return -1;
+        final RomRow[] rows = m_rows;
+        if(i < 0 || i >= rows.length)
+            return -1;
+        return rows[i].id;
     }
 
     @Override
@@ -164,5 +244,6 @@ class RomListViewsFactory implements RemoteViewsService.RemoteViewsFactory {
     }
 
     private Context m_context;
-    private Cursor m_cursor;
+    private volatile RomRow[] m_rows = new RomRow[0];
+    private HashMap<String, Bitmap> m_iconCache = new HashMap<String, Bitmap>();
 }
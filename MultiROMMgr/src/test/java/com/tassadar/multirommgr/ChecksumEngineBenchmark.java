@@ -0,0 +1,157 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares ChecksumEngine with the plain 8 KiB stream reads it replaced.
+ * Runs on the build machine's JVM, not in the APK. The files are written
+ * right before they are hashed, so this measures the read and hashing
+ * overhead with a warm page cache, not the storage.
+ *
+ * File size in MiB can be changed with -Dbenchmark.size=N.
+ */
+public class ChecksumEngineBenchmark {
+    private static final int FILES = 4;
+    private static final int RUNS = 3;
+
+    private static List<File> s_files = new ArrayList<File>();
+    private static long s_size;
+
+    @BeforeClass
+    public static void createFiles() throws IOException {
+        s_size = Long.getLong("benchmark.size", 64) * 1024 * 1024;
+
+        Random rnd = new Random(42);
+        byte[] buff = new byte[1024 * 1024];
+        for(int i = 0; i < FILES; ++i) {
+            File f = File.createTempFile("checksum-bench", ".img");
+            FileOutputStream out = new FileOutputStream(f);
+            try {
+                for(long written = 0; written < s_size; written += buff.length) {
+                    rnd.nextBytes(buff);
+                    out.write(buff);
+                }
+            } finally {
+                out.close();
+            }
+            s_files.add(f);
+        }
+    }
+
+    @AfterClass
+    public static void deleteFiles() {
+        for(File f : s_files)
+            f.delete();
+    }
+
+    @Test
+    public void singleDigest() throws IOException {
+        for(String type : new String[] { "MD5", "SHA-256" }) {
+            File f = s_files.get(0);
+            String expected = streamChecksum(f, type);
+
+            long stream = Long.MAX_VALUE, engine = Long.MAX_VALUE;
+            for(int i = 0; i < RUNS; ++i) {
+                long start = System.nanoTime();
+                streamChecksum(f, type);
+                stream = Math.min(stream, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                assertEquals(expected, ChecksumEngine.calculate(f, type));
+                engine = Math.min(engine, System.nanoTime() - start);
+            }
+            report(type + ", one file", s_size, stream, engine);
+        }
+    }
+
+    @Test
+    public void md5AndSha256InOnePass() throws IOException {
+        File f = s_files.get(0);
+        String[] expected = { streamChecksum(f, "MD5"), streamChecksum(f, "SHA-256") };
+
+        long stream = Long.MAX_VALUE, engine = Long.MAX_VALUE;
+        for(int i = 0; i < RUNS; ++i) {
+            long start = System.nanoTime();
+            streamChecksum(f, "MD5");
+            streamChecksum(f, "SHA-256");
+            stream = Math.min(stream, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertArrayEquals(expected, ChecksumEngine.calculate(f, "MD5", "SHA-256"));
+            engine = Math.min(engine, System.nanoTime() - start);
+        }
+        report("MD5+SHA-256, one file", s_size, stream, engine);
+    }
+
+    @Test
+    public void severalFiles() throws IOException {
+        long stream = Long.MAX_VALUE, engine = Long.MAX_VALUE;
+        for(int i = 0; i < RUNS; ++i) {
+            long start = System.nanoTime();
+            ArrayList<String> expected = new ArrayList<String>();
+            for(File f : s_files)
+                expected.add(streamChecksum(f, "SHA-256"));
+            stream = Math.min(stream, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            Map<File, String> res = ChecksumEngine.calculate(s_files, "SHA-256");
+            engine = Math.min(engine, System.nanoTime() - start);
+
+            for(int x = 0; x < s_files.size(); ++x)
+                assertEquals(expected.get(x), res.get(s_files.get(x)));
+        }
+        report("SHA-256, " + FILES + " files", s_size * FILES, stream, engine);
+    }
+
+    private static String streamChecksum(File f, String type) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            String res = Utils.calculateChecksumStream(in, type);
+            assertNotNull(res);
+            return res;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void report(String what, long bytes, long streamNs, long engineNs) {
+        System.out.println(String.format("%s, %d MiB: stream %d MiB/s, engine %d MiB/s",
+                what, bytes / (1024 * 1024), mibPerSec(bytes, streamNs), mibPerSec(bytes, engineNs)));
+    }
+
+    private static long mibPerSec(long bytes, long ns) {
+        return ns > 0 ? bytes * 1000000000L / ns / (1024 * 1024) : 0;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * This file is part of MultiROM Manager.
+ *
+ * MultiROM Manager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MultiROM Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MultiROM Manager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tassadar.multirommgr.installfragment;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.tassadar.multirommgr.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs SegmentedDownload against an HTTP server on the loopback interface.
+ * The server holds back the first segment until all the others are served,
+ * so the digests have to be fed from the read-back of later segments as
+ * well as directly from the first one.
+ */
+public class SegmentedDownloadTest {
+    private static final int SIZE = 4 * (int)SegmentedDownload.MIN_SEGMENT_SIZE + 12345;
+    private static final int CHUNK = 64 * 1024;
+
+    private static byte[] s_data;
+
+    private HttpServer m_server;
+    private String m_url;
+    private File m_dest;
+    private boolean m_ranges;
+    private CountDownLatch m_othersServed;
+    private final List<long[]> m_requested = Collections.synchronizedList(new ArrayList<long[]>());
+    private final List<Long> m_finished = Collections.synchronizedList(new ArrayList<Long>());
+
+    @BeforeClass
+    public static void createData() {
+        s_data = new byte[SIZE];
+        new Random(42).nextBytes(s_data);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        m_ranges = true;
+        m_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        m_server.createContext("/file.img", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                serve(ex);
+            }
+        });
+        m_server.setExecutor(Executors.newCachedThreadPool());
+        m_server.start();
+        m_url = "http://127.0.0.1:" + m_server.getAddress().getPort() + "/file.img";
+
+        m_dest = File.createTempFile("segmented", ".img");
+        m_dest.delete();
+    }
+
+    @After
+    public void tearDown() {
+        m_server.stop(0);
+        m_dest.delete();
+        SegmentedDownload.getStateFile(m_dest).delete();
+    }
+
+    @Test
+    public void splitsIntoRangesAndHashesInOrder() throws Exception {
+        // the probe is not a segment, the first segment waits for the other three
+        m_othersServed = new CountDownLatch(SegmentedDownload.DEFAULT_SEGMENTS - 1);
+
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        SegmentedDownload d = new SegmentedDownload(m_url, m_dest, 0, SegmentedDownload.DEFAULT_SEGMENTS);
+        assertTrue(d.download(null, md5, sha));
+
+        assertFileAndDigests(md5, sha);
+        assertRangesCover(0, SegmentedDownload.DEFAULT_SEGMENTS);
+
+        // the hashed prefix really had to wait for the first segment
+        assertEquals(Long.valueOf(0), m_finished.get(m_finished.size() - 1));
+        assertFalse(SegmentedDownload.getStateFile(m_dest).exists());
+    }
+
+    @Test
+    public void resumesAfterOffset() throws Exception {
+        final int offset = 5 * 1024 * 1024 + 7;
+        FileOutputStream out = new FileOutputStream(m_dest);
+        try {
+            out.write(s_data, 0, offset);
+        } finally {
+            out.close();
+        }
+
+        // (SIZE - offset) / MIN_SEGMENT_SIZE segments, nothing is held back
+        m_othersServed = new CountDownLatch(0);
+
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        SegmentedDownload d = new SegmentedDownload(m_url, m_dest, offset, SegmentedDownload.DEFAULT_SEGMENTS);
+        assertTrue(d.download(null, md5, sha));
+
+        assertFileAndDigests(md5, sha);
+        assertRangesCover(offset, (int)((SIZE - offset) / SegmentedDownload.MIN_SEGMENT_SIZE));
+    }
+
+    @Test
+    public void fallsBackWithoutRanges() throws Exception {
+        m_ranges = false;
+
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        SegmentedDownload d = new SegmentedDownload(m_url, m_dest, 0, SegmentedDownload.DEFAULT_SEGMENTS);
+        assertTrue(d.download(null, md5, sha));
+
+        assertFileAndDigests(md5, sha);
+        assertFalse(SegmentedDownload.getStateFile(m_dest).exists());
+    }
+
+    private void serve(HttpExchange ex) throws IOException {
+        String range = ex.getRequestHeaders().getFirst("Range");
+        long from = 0, to = SIZE - 1;
+        if(m_ranges && range != null) {
+            // bytes=from-to, the to part may be missing
+            String[] parts = range.substring(range.indexOf('=') + 1).split("-", -1);
+            from = Long.parseLong(parts[0].trim());
+            if(!parts[1].trim().isEmpty())
+                to = Math.min(SIZE - 1, Long.parseLong(parts[1].trim()));
+
+            ex.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + SIZE);
+            ex.sendResponseHeaders(206, to - from + 1);
+        } else {
+            ex.sendResponseHeaders(200, SIZE);
+        }
+
+        // the probe for 0-0 isn't a segment
+        final boolean segment = m_ranges && range != null && to > from;
+        if(segment)
+            m_requested.add(new long[] { from, to });
+
+        OutputStream out = ex.getResponseBody();
+        try {
+            for(long pos = from; pos <= to; ) {
+                int len = (int)Math.min(CHUNK, to - pos + 1);
+                out.write(s_data, (int)pos, len);
+                out.flush();
+                pos += len;
+
+                // first segment: one chunk goes out, the rest after the others
+                if(segment && from == 0 && pos == len)
+                    m_othersServed.await(30, TimeUnit.SECONDS);
+            }
+        } catch(InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            out.close();
+        }
+
+        if(segment) {
+            m_finished.add(from);
+            if(from != 0)
+                m_othersServed.countDown();
+        }
+    }
+
+    private void assertFileAndDigests(MessageDigest md5, MessageDigest sha) throws Exception {
+        byte[] file = new byte[SIZE];
+        RandomAccessFile raf = new RandomAccessFile(m_dest, "r");
+        try {
+            assertEquals(SIZE, raf.length());
+            raf.readFully(file);
+        } finally {
+            raf.close();
+        }
+        assertArrayEquals(s_data, file);
+
+        assertEquals(Utils.bytesToHex(MessageDigest.getInstance("MD5").digest(s_data)),
+                Utils.bytesToHex(md5.digest()));
+        assertEquals(Utils.bytesToHex(MessageDigest.getInstance("SHA-256").digest(s_data)),
+                Utils.bytesToHex(sha.digest()));
+    }
+
+    /** Segments must be requested once each, back to back from start to the end */
+    private void assertRangesCover(long start, int segments) {
+        ArrayList<long[]> ranges = new ArrayList<long[]>(m_requested);
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+
+        assertEquals(segments, ranges.size());
+        long next = start;
+        for(long[] r : ranges) {
+            assertEquals(next, r[0]);
+            next = r[1] + 1;
+        }
+        assertEquals(SIZE, next);
+    }
+}